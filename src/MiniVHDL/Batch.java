@@ -0,0 +1,170 @@
+package MiniVHDL;
+
+import MiniVHDL.Circuit.Circuit;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The {@code Batch} compiles the jobs of a manifest, each generating one top-level entity from a set of sources.
+ * <p>
+ * Each line of the manifest holds the top-level entity, the output file and the sources of one job,
+ * separated by whitespace; sources are files, directories or {@code @filelist}s as on the command line.
+ * Relative paths are resolved against the directory of the manifest. Blank lines and lines starting
+ * with {@code #} are skipped.
+ * </p>
+ * <p>
+ * Jobs whose sources expand to the same files in the same order share one {@link Compilation}, so every such
+ * list is parsed and checked only once, even where the jobs spell the paths differently. Jobs listing the files in
+ * another order are compiled on their own, as the link order decides the order of the modules and which of two
+ * entities with the same name wins, and each job must get the program a standalone compile would. The FIRRTL programs
+ * of all jobs are then generated in parallel over the shared {@link Circuit}, each by its own {@link Generator}.
+ * The run ends with a summary of the time spent on each job.
+ * </p>
+ */
+class Batch {
+    private record Job(String topLevelModule, String output, List<String> sources) {
+    }
+
+    private record Result(String status, long generateNanos) {
+    }
+
+    /**
+     * Runs all jobs of a manifest.
+     *
+     * @param directory the working directory the manifest path is resolved against.
+     * @param args      the manifest path, optionally preceded by <code>--cache &lt;directory&gt;</code>.
+     * @param out       the stream for the progress and error messages and the summary.
+     * @param err       the stream for usage and I/O errors.
+     * @return 0 if all jobs succeeded, 1 otherwise.
+     */
+    public static int run(Path directory, List<String> args, PrintStream out, PrintStream err) {
+        ModuleCache cache = null;
+        int first = 0;
+        if (args.size() == 3 && args.getFirst().equals("--cache")) {
+            try {
+                cache = new ModuleCache(directory.resolve(args.get(1)));
+            } catch (IOException e) {
+                err.printf("Error: Cannot create cache directory %s%n", args.get(1));
+                return 1;
+            }
+            first = 2;
+        }
+        if (args.size() != first + 1) {
+            err.println("Error: Missing required arguments. Usage: java Main --batch [--cache <directory>] <manifest>");
+            return 1;
+        }
+
+        Path manifest = directory.resolve(args.get(first));
+        List<Job> jobs = new ArrayList<>();
+        try {
+            for (String line : Files.readAllLines(manifest)) {
+                line = line.strip();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                if (fields.length < 3) {
+                    err.printf("Error: Job needs a top-level entity, an output file and sources: %s%n", line);
+                    return 1;
+                }
+                jobs.add(new Job(fields[0], fields[1], List.of(Arrays.copyOfRange(fields, 2, fields.length))));
+            }
+        } catch (IOException e) {
+            err.printf("Error: Cannot read manifest %s%n", manifest);
+            return 1;
+        }
+        Path base = manifest.getParent() != null ? manifest.getParent() : directory;
+
+        // parse and check every distinct list of source files once
+        Map<List<String>, Compilation> compilations = new LinkedHashMap<>();
+        Map<Compilation, Long> parseNanos = new LinkedHashMap<>();
+        List<Compilation> jobCompilations = new ArrayList<>();
+        for (Job job : jobs) {
+            long start = System.nanoTime();
+            List<String> files;
+            try {
+                files = Compilation.collectSources(base, job.sources);
+            } catch (IOException e) {
+                err.printf("Error: Cannot read input %s%n", e.getMessage());
+                return 1;
+            }
+            List<String> key = files.stream().map(file -> normalize(base, file)).toList();
+            Compilation compilation = compilations.get(key);
+            if (compilation == null) {
+                compilation = new Compilation(base, files);
+                compilation.cache = cache;
+                compilation.compile(out);
+                out.printf("%s: %d %s detected%n", String.join(" ", job.sources), compilation.errorCount,
+                        compilation.errorCount == 1 ? " error" : " errors");
+                compilations.put(key, compilation);
+                parseNanos.put(compilation, System.nanoTime() - start);
+            }
+            jobCompilations.add(compilation);
+        }
+
+        // generate all tops in parallel; the circuits are only read from here on
+        List<Future<Result>> futures = new ArrayList<>();
+        try (ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors())) {
+            for (int i = 0; i < jobs.size(); i++) {
+                Job job = jobs.get(i);
+                Compilation compilation = jobCompilations.get(i);
+                futures.add(executor.submit(() -> generate(job, compilation, base.resolve(job.output))));
+            }
+        }
+
+        boolean failed = false;
+        out.printf("%-24s %-10s %10s %12s  %s%n", "Top-level", "Status", "Parse ms", "Generate ms", "Output");
+        for (int i = 0; i < jobs.size(); i++) {
+            Job job = jobs.get(i);
+            Result result;
+            try {
+                result = futures.get(i).get();
+            } catch (ExecutionException e) {
+                result = new Result("failed: " + e.getCause(), 0);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return 1;
+            }
+            failed |= !result.status.equals("ok");
+            out.printf("%-24s %-10s %10.1f %12.1f  %s%n", job.topLevelModule, result.status,
+                    parseNanos.get(jobCompilations.get(i)) / 1e6, result.generateNanos / 1e6, job.output);
+        }
+        return failed ? 1 : 0;
+    }
+
+    // the same file named by different paths, such as a.vhd and ./lib/../a.vhd, has one key
+    private static String normalize(Path base, String file) {
+        return file.equals(Compilation.STDIN) ? file : base.resolve(file).toAbsolutePath().normalize().toString();
+    }
+
+    private static Result generate(Job job, Compilation compilation, Path output) throws IOException {
+        if (compilation.errorCount > 0) {
+            return new Result("errors", 0);
+        }
+        Circuit circuit = compilation.circuit;
+        if (circuit.getEntityByName(job.topLevelModule.toLowerCase()) == null) {
+            return new Result("no entity", 0);
+        }
+        long start = System.nanoTime();
+        Generator generator = new Generator();
+        generator.cache = compilation.cache;
+        try (Writer writer = Files.newBufferedWriter(output)) {
+            generator.generate(job.topLevelModule, circuit, writer);
+            writer.write(System.lineSeparator());
+        }
+        return new Result("ok", System.nanoTime() - start);
+    }
+}
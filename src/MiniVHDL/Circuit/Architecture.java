@@ -4,7 +4,10 @@ import MiniVHDL.Circuit.Expression.*;
 import MiniVHDL.Circuit.Wire.*;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Represents the Architecture of an {@link Entity}, holding components, signals,
@@ -18,32 +21,55 @@ public class Architecture {
     public List<Signal> signals = new ArrayList<>();
     public List<Instance> instances = new ArrayList<>();
     public List<Connection> connections = new ArrayList<>();
+    public String sourceHash;
+    private final Map<String, Wire> wiresByName = new HashMap<>();
+    private final Map<String, Component> componentsByName = new HashMap<>();
+    private final DriverIndex drivers = new DriverIndex();
 
     public Architecture(String name) {
         this.name = name;
     }
 
-    public Wire getWireFromIdent(String ident) {
+    /**
+     * Sets the entity this architecture belongs to and registers a canonical
+     * {@link PortWire} for each of its ports.
+     *
+     * @param entity the {@link Entity} implemented by this architecture.
+     */
+    public void setEntity(Entity entity) {
+        this.entity = entity;
         for (Port port : entity.ports) {
-            if (port.name.equals(ident)) {
-                return new PortWire(port.length, port);
-            }
-        }
-        for (Signal signal : signals) {
-            if (signal.name.equals(ident)) {
-                return new SignalWire(signal.length, signal);
-            }
+            wiresByName.putIfAbsent(port.name, new PortWire(port.length, port));
         }
-        return null;
+    }
+
+    /**
+     * Adds a signal declaration to this architecture and registers its canonical {@link SignalWire}.
+     * Ports of the entity take precedence over signals of the same name.
+     *
+     * @param signal the {@link Signal} to add.
+     */
+    public void addSignal(Signal signal) {
+        signals.add(signal);
+        wiresByName.putIfAbsent(signal.name, new SignalWire(signal.length, signal));
+    }
+
+    /**
+     * Adds a component declaration to this architecture.
+     *
+     * @param component the {@link Component} to add.
+     */
+    public void addComponent(Component component) {
+        components.add(component);
+        componentsByName.putIfAbsent(component.name, component);
+    }
+
+    public Wire getWireFromIdent(String ident) {
+        return wiresByName.get(ident);
     }
 
     public Component getComponentFromIdent(String ident) {
-        for (Component component : components) {
-            if (component.name.equals(ident)) {
-                return component;
-            }
-        }
-        return null;
+        return componentsByName.get(ident);
     }
 
     public void addPortConnection(Instance instance, Expression expr, int portIndex) {
@@ -53,109 +79,176 @@ public class Architecture {
         Port port = instance.component.ports.get(portIndex);
         InstancePortWire instancePortWire = new InstancePortWire(port.length, instance, port);
         if (port.direction == Port.Direction.OUT) {
-            connections.add(new Connection(instancePortWire, expr));
+            addConnection(new Connection(instancePortWire, expr));
         } else {
-            connections.add(new Connection(expr, instancePortWire));
+            addConnection(new Connection(expr, instancePortWire));
         }
     }
 
+    /**
+     * Adds a connection to this architecture and records its destination bits as driven.
+     *
+     * @param connection the {@link Connection} to add.
+     */
+    public void addConnection(Connection connection) {
+        connections.add(connection);
+        if (connection.to != null) {
+            drivers.add(connection.to);
+        }
+    }
+
+    /**
+     * Checks whether any bit of the given assignment destination is already driven
+     * by a connection added through {@link #addConnection(Connection)}.
+     *
+     * @param expr the assignment destination.
+     * @return {@code true} if the destination overlaps an already driven bit range.
+     */
     public boolean isAlreadyDriven(Expression expr) {
-        int indexFrom = 0;
-        int indexTo = expr.width - 1;
-        if (expr instanceof WidthExpression widthExpr) {
-            indexFrom = widthExpr.offset;
-            indexTo = widthExpr.offset + widthExpr.width - 1;
-            expr = widthExpr.source;
+        return drivers.isDriven(expr);
+    }
+
+    /**
+     * Reports every bit range of an output port, signal or instance input port that is not driven.
+     * <p>
+     * The connections are visited once, marking the driven bits of each destination in a
+     * {@code long[]} bitset. Whole undriven wires are reported by name, partially driven
+     * wires by their exact undriven bit ranges (e.g. "Bits 31..16 of signal x").
+     * </p>
+     *
+     * @return one line per undriven range, or an empty string if everything is driven.
+     */
+    public String getUndrivenWires() {
+        Map<Signal, long[]> signalBits = new IdentityHashMap<>();
+        Map<Port, long[]> portBits = new IdentityHashMap<>();
+        Map<Instance, Map<Port, long[]>> instancePortBits = new IdentityHashMap<>();
+        for (Port port : entity.ports) {
+            if (port.direction == Port.Direction.OUT) {
+                portBits.put(port, new long[(port.length + 63) >>> 6]);
+            }
+        }
+        for (Signal signal : signals) {
+            signalBits.put(signal, new long[(signal.length + 63) >>> 6]);
         }
+        for (Instance instance : instances) {
+            Map<Port, long[]> bits = new IdentityHashMap<>();
+            for (Port port : instance.component.ports) {
+                if (port.direction == Port.Direction.IN) {
+                    bits.put(port, new long[(port.length + 63) >>> 6]);
+                }
+            }
+            instancePortBits.put(instance, bits);
+        }
+
         for (Connection c : connections) {
             Expression to = c.to;
-            int c_indexFrom = 0;
-            int c_indexTo = to.width - 1;
-            if (c.to instanceof WidthExpression widthExpr) {
-                c_indexFrom = widthExpr.offset;
-                c_indexTo = widthExpr.offset + widthExpr.width - 1;
+            if (to == null) {
+                continue;
+            }
+            int indexFrom = 0;
+            int indexTo = to.width - 1;
+            if (to instanceof WidthExpression widthExpr) {
+                indexFrom = widthExpr.offset;
+                indexTo = widthExpr.offset + widthExpr.width - 1;
                 to = widthExpr.source;
             }
-
-            if (indexFrom <= c_indexTo && c_indexFrom <= indexTo) {
-                if (to instanceof SignalWire toWire && expr instanceof SignalWire exprWire) {
-                    if (toWire.signal == exprWire.signal) {
-                        return true;
-                    }
-                }
-                if (to instanceof PortWire toWire && expr instanceof PortWire exprWire) {
-                    if (toWire.port == exprWire.port) {
-                        return true;
-                    }
-                }
-                if (to instanceof InstancePortWire toWire && expr instanceof InstancePortWire exprWire) {
-                    if (toWire.instance == exprWire.instance && toWire.port == exprWire.port) {
-                        return true;
-                    }
+            long[] bits = switch (to) {
+                case SignalWire toWire -> signalBits.get(toWire.signal);
+                case PortWire toWire -> portBits.get(toWire.port);
+                case InstancePortWire toWire -> {
+                    Map<Port, long[]> instanceBits = instancePortBits.get(toWire.instance);
+                    yield instanceBits == null ? null : instanceBits.get(toWire.port);
                 }
+                case null, default -> null;
+            };
+            if (bits != null) {
+                setBits(bits, indexFrom, Math.min(indexTo, (bits.length << 6) - 1));
             }
         }
-        return false;
-    }
 
-    public String getUndrivenWires() {
         StringBuilder sb = new StringBuilder();
         for (Port port : entity.ports) {
-            if (port.direction == Port.Direction.OUT && isNotCompletelyDriven(new PortWire(port.length, port))) {
-                sb.append("Port %s of entity %s\n".formatted(port.name, entity.name));
+            if (port.direction == Port.Direction.OUT) {
+                appendUndriven(sb, portBits.get(port), port.length, port.offset,
+                        "Port %s of entity %s".formatted(port.name, entity.name),
+                        "port %s of entity %s".formatted(port.name, entity.name));
             }
         }
         for (Signal signal : signals) {
-            if (isNotCompletelyDriven(new SignalWire(signal.length, signal))) {
-                sb.append("Signal %s of entity %s\n".formatted(signal.name, entity.name));
-            }
+            appendUndriven(sb, signalBits.get(signal), signal.length, signal.offset,
+                    "Signal %s of entity %s".formatted(signal.name, entity.name),
+                    "signal %s of entity %s".formatted(signal.name, entity.name));
         }
         for (Instance instance : instances) {
+            Map<Port, long[]> instanceBits = instancePortBits.get(instance);
             for (Port port : instance.component.ports) {
-                if (port.direction == Port.Direction.IN && isNotCompletelyDriven(new InstancePortWire(port.length, instance, port))) {
-                    sb.append("Instance Port %s of instance %s in entity %s\n".formatted(port.name, instance.name, entity.name));
+                if (port.direction == Port.Direction.IN) {
+                    appendUndriven(sb, instanceBits.get(port), port.length, port.offset,
+                            "Instance Port %s of instance %s in entity %s".formatted(port.name, instance.name, entity.name),
+                            "instance port %s of instance %s in entity %s".formatted(port.name, instance.name, entity.name));
                 }
             }
         }
         return sb.toString();
     }
 
-    public boolean isNotCompletelyDriven(Wire expr) {
-        List<Integer> notDriven = new ArrayList<>();
-        for (int i = 0; i < expr.width; i++) {
-            notDriven.add(i);
-        }
-        for (Connection c : connections) {
-            Expression to = c.to;
-            if (to == null) {
-                continue;
+    private static void setBits(long[] bits, int from, int to) {
+        for (int word = Math.max(from, 0) >>> 6; word <= to >>> 6 && word < bits.length; word++) {
+            int lo = Math.max(from - (word << 6), 0);
+            int hi = Math.min(to - (word << 6), 63);
+            if (lo <= hi) {
+                bits[word] |= (-1L >>> (63 - hi)) & (-1L << lo);
             }
-            int c_indexFrom = 0;
-            int c_indexTo = to.width - 1;
-            if (c.to instanceof WidthExpression widthExpr) {
-                c_indexFrom = widthExpr.offset;
-                c_indexTo = widthExpr.offset + widthExpr.width - 1;
-                to = widthExpr.source;
+        }
+    }
+
+    private static void appendUndriven(StringBuilder sb, long[] bits, int length, int offset, String whole, String part) {
+        int from = nextClearBit(bits, 0, length);
+        if (from == 0 && nextSetBit(bits, 0, length) == length) {
+            if (length > 0) {
+                sb.append(whole).append("\n");
             }
-            int finalC_indexFrom = c_indexFrom;
-            int finalC_indexTo = c_indexTo;
-            if (to instanceof SignalWire toWire && expr instanceof SignalWire exprWire) {
-                if (toWire.signal == exprWire.signal) {
-                    notDriven.removeIf(integer -> integer >= finalC_indexFrom && integer <= finalC_indexTo);
-                }
+            return;
+        }
+        while (from < length) {
+            int to = nextSetBit(bits, from, length) - 1;
+            if (from == to) {
+                sb.append("Bit %d of %s\n".formatted(from + offset, part));
+            } else {
+                sb.append("Bits %d..%d of %s\n".formatted(to + offset, from + offset, part));
             }
-            if (to instanceof PortWire toWire && expr instanceof PortWire exprWire) {
-                if (toWire.port == exprWire.port) {
-                    notDriven.removeIf(integer -> integer >= finalC_indexFrom && integer <= finalC_indexTo);
-                }
+            from = nextClearBit(bits, to + 1, length);
+        }
+    }
+
+    private static int nextSetBit(long[] bits, int from, int length) {
+        int word = from >>> 6;
+        if (word >= bits.length) {
+            return length;
+        }
+        long w = bits[word] & (-1L << from);
+        while (w == 0) {
+            if (++word >= bits.length) {
+                return length;
             }
-            if (to instanceof InstancePortWire toWire && expr instanceof InstancePortWire exprWire) {
-                if (toWire.instance == exprWire.instance && toWire.port == exprWire.port) {
-                    notDriven.removeIf(integer -> integer >= finalC_indexFrom && integer <= finalC_indexTo);
-                }
+            w = bits[word];
+        }
+        return Math.min((word << 6) + Long.numberOfTrailingZeros(w), length);
+    }
+
+    private static int nextClearBit(long[] bits, int from, int length) {
+        int word = from >>> 6;
+        if (word >= bits.length) {
+            return length;
+        }
+        long w = ~bits[word] & (-1L << from);
+        while (w == 0) {
+            if (++word >= bits.length) {
+                return length;
             }
+            w = ~bits[word];
         }
-        return !notDriven.isEmpty();
+        return Math.min((word << 6) + Long.numberOfTrailingZeros(w), length);
     }
 
 
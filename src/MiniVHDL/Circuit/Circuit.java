@@ -1,27 +1,111 @@
 package MiniVHDL.Circuit;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
- * Represents the top-level MiniVHDL circuit structure which contains a collection of {@link Entity} objects.
+ * Represents the top-level MiniVHDL circuit structure which contains a collection of {@link Entity} objects
+ * and the {@link Architecture} objects implementing them.
  * Provides utility methods for retrieving entities by name and checking undriven wires.
+ * Entities that are not declared in the circuit are looked up in its {@link WorkLibrary}, if it has one.
  */
 public class Circuit {
     public List<Entity> entities = new ArrayList<>();
+    public List<Architecture> architectures = new ArrayList<>();
+    public WorkLibrary workLibrary;
+    private final Map<String, Entity> entitiesByName = new HashMap<>();
 
+    /**
+     * Adds an entity to this circuit and registers it for lookup by name.
+     *
+     * @param entity the {@link Entity} to add.
+     */
+    public void addEntity(Entity entity) {
+        entities.add(entity);
+        entitiesByName.putIfAbsent(entity.name, entity);
+    }
+
+    /**
+     * Adds an architecture to this circuit. If it implements an entity of this circuit,
+     * the architecture is bound to that entity, replacing any earlier one.
+     * Architectures of entities declared elsewhere are bound when they are added to the linked circuit.
+     *
+     * @param architecture the {@link Architecture} to add.
+     */
+    public void addArchitecture(Architecture architecture) {
+        architectures.add(architecture);
+        if (architecture.entity != null && getEntityByName(architecture.entity.name) == architecture.entity) {
+            architecture.entity.architecture = architecture;
+        }
+    }
+
+    /**
+     * Looks up an entity by name, first among the entities of this circuit and then in the work library.
+     *
+     * @param name the name of the entity.
+     * @return the entity, or {@code null} if there is none with this name.
+     */
     public Entity getEntityByName(String name) {
-        for (Entity e : entities) {
-            if (e.name.equals(name))
-                return e;
+        Entity entity = entitiesByName.get(name);
+        if (entity == null && workLibrary != null) {
+            entity = workLibrary.getEntityByName(name);
         }
-        return null;
+        return entity;
+    }
+
+    /**
+     * Collects the entities reachable from the given top-level entity by following the instances
+     * of each architecture to the entity referenced by their component.
+     *
+     * @param topLevelName the name of the top-level entity.
+     * @return the reachable entities in declaration order followed by the reachable entities of the work library
+     * in the order they were reached, or an empty list if the top-level entity does not exist.
+     */
+    public List<Entity> getReachableEntities(String topLevelName) {
+        Set<Entity> reachable = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<Entity> fromLibrary = new ArrayList<>();
+        ArrayDeque<Entity> pending = new ArrayDeque<>();
+        Entity top = getEntityByName(topLevelName);
+        if (top != null) {
+            reachable.add(top);
+            pending.add(top);
+            if (entitiesByName.get(topLevelName) != top) {
+                fromLibrary.add(top);
+            }
+        }
+        while (!pending.isEmpty()) {
+            Entity entity = pending.poll();
+            if (entity.architecture == null) {
+                continue;
+            }
+            for (Instance instance : entity.architecture.instances) {
+                Entity referenced = getEntityByName(instance.component.name);
+                if (referenced != null && reachable.add(referenced)) {
+                    pending.add(referenced);
+                    if (entitiesByName.get(referenced.name) != referenced) {
+                        fromLibrary.add(referenced);
+                    }
+                }
+            }
+        }
+        List<Entity> result = new ArrayList<>(entities.stream().filter(reachable::contains).toList());
+        result.addAll(fromLibrary);
+        return result;
     }
 
     public String getUndrivenWires() {
         StringBuilder sb = new StringBuilder();
-        for (Entity e : entities) {
-            String undriven = e.architecture.getUndrivenWires();
+        for (Architecture architecture : architectures) {
+            if (architecture.entity == null) {
+                continue;
+            }
+            String undriven = architecture.getUndrivenWires();
             if (!undriven.isEmpty()) {
                 sb.append(undriven).append("\n");
             }
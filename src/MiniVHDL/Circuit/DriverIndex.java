@@ -0,0 +1,99 @@
+package MiniVHDL.Circuit;
+
+import MiniVHDL.Circuit.Expression.*;
+import MiniVHDL.Circuit.Wire.*;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Index of the bit ranges already driven inside an {@link Architecture}.
+ * Each assignable target (a {@link Signal}, a {@link Port} or an {@link Instance} port)
+ * maps to a set of disjoint bit intervals, so an overlap check costs O(log k)
+ * for k driven ranges of that target instead of a scan over all connections.
+ */
+class DriverIndex {
+    private final Map<Signal, TreeMap<Integer, Integer>> signals = new IdentityHashMap<>();
+    private final Map<Port, TreeMap<Integer, Integer>> ports = new IdentityHashMap<>();
+    private final Map<Instance, Map<Port, TreeMap<Integer, Integer>>> instancePorts = new IdentityHashMap<>();
+
+    /**
+     * Checks whether any bit addressed by the given assignment target is already driven.
+     *
+     * @param to the assignment target (a wire or an indexed wire).
+     * @return {@code true} if at least one bit of the target is already driven.
+     */
+    public boolean isDriven(Expression to) {
+        int indexFrom = 0;
+        int indexTo = to.width - 1;
+        if (to instanceof WidthExpression widthExpr) {
+            indexFrom = widthExpr.offset;
+            indexTo = widthExpr.offset + widthExpr.width - 1;
+            to = widthExpr.source;
+        }
+        TreeMap<Integer, Integer> intervals = getIntervals(to, false);
+        if (intervals == null) {
+            return false;
+        }
+        Map.Entry<Integer, Integer> entry = intervals.floorEntry(indexTo);
+        return entry != null && entry.getValue() >= indexFrom;
+    }
+
+    /**
+     * Records the bits addressed by the given assignment target as driven.
+     * Targets that are not assignable wires are ignored.
+     *
+     * @param to the assignment target (a wire or an indexed wire).
+     */
+    public void add(Expression to) {
+        int indexFrom = 0;
+        int indexTo = to.width - 1;
+        if (to instanceof WidthExpression widthExpr) {
+            indexFrom = widthExpr.offset;
+            indexTo = widthExpr.offset + widthExpr.width - 1;
+            to = widthExpr.source;
+        }
+        TreeMap<Integer, Integer> intervals = getIntervals(to, true);
+        if (intervals == null || indexTo < indexFrom) {
+            return;
+        }
+        Map.Entry<Integer, Integer> lower = intervals.floorEntry(indexFrom);
+        if (lower != null && lower.getValue() >= indexFrom - 1) {
+            indexFrom = lower.getKey();
+            indexTo = Math.max(indexTo, lower.getValue());
+        }
+        Map.Entry<Integer, Integer> next = intervals.ceilingEntry(indexFrom);
+        while (next != null && next.getKey() <= indexTo + 1) {
+            indexTo = Math.max(indexTo, next.getValue());
+            intervals.remove(next.getKey());
+            next = intervals.higherEntry(next.getKey());
+        }
+        intervals.put(indexFrom, indexTo);
+    }
+
+    private TreeMap<Integer, Integer> getIntervals(Expression wire, boolean create) {
+        switch (wire) {
+            case SignalWire signalWire -> {
+                return create ? signals.computeIfAbsent(signalWire.signal, k -> new TreeMap<>()) : signals.get(signalWire.signal);
+            }
+            case PortWire portWire when portWire.port != null -> {
+                return create ? ports.computeIfAbsent(portWire.port, k -> new TreeMap<>()) : ports.get(portWire.port);
+            }
+            case InstancePortWire instancePortWire -> {
+                Map<Port, TreeMap<Integer, Integer>> instanceMap = instancePorts.get(instancePortWire.instance);
+                if (instanceMap == null) {
+                    if (!create) {
+                        return null;
+                    }
+                    instanceMap = new IdentityHashMap<>();
+                    instancePorts.put(instancePortWire.instance, instanceMap);
+                }
+                return create ? instanceMap.computeIfAbsent(instancePortWire.port, k -> new TreeMap<>()) : instanceMap.get(instancePortWire.port);
+            }
+            case null, default -> {
+                return null;
+            }
+        }
+    }
+}
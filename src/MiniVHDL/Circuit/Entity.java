@@ -10,6 +10,7 @@ public class Entity {
     public String name;
     public List<Port> ports;
     public Architecture architecture;
+    public String sourceHash;
 
     public Entity(String name, List<Port> ports) {
         this.name = name;
@@ -0,0 +1,215 @@
+package MiniVHDL.Circuit;
+
+import MiniVHDL.Circuit.Expression.*;
+import MiniVHDL.Circuit.Wire.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Flattens the hierarchy below a top-level {@link Entity} into a single {@link Architecture}.
+ * <p>
+ * Every instance of an entity with an architecture is inlined: its signals become signals of the flat
+ * architecture, named by the path of instance names leading to them joined with {@code _} (for example
+ * {@code u1_u2_carry}), and its connections are copied with their wires replaced accordingly.
+ * Names that would collide with an existing name get a numeric suffix.
+ * </p>
+ * <p>
+ * Ports of inlined instances are not turned into signals where they only pass a wire through. An input
+ * port connected to a wire or a bit range of a wire is replaced by that wire wherever the instance reads it,
+ * and an output port connected to a wire or a bit range of a wire is replaced by that wire wherever the
+ * instance drives it. Only ports connected to other expressions, and unconnected output ports, become signals.
+ * </p>
+ * <p>
+ * Instances of entities without architecture, such as entities of a {@link WorkLibrary}, are kept as
+ * instances of the flat architecture, and their entities are added to the flat circuit. The given circuit
+ * is not modified.
+ * </p>
+ */
+public class Flattener {
+    private final Circuit circuit;
+    private final Architecture flat;
+    private final Circuit result = new Circuit();
+    private final Set<String> names = new HashSet<>();
+    private final Set<Entity> path = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /**
+     * The wires of one inlined instance: the expression replacing each port, by name, and the flat
+     * signals and instances replacing its signals and black-box instances.
+     */
+    private record Scope(String prefix, Map<String, Expression> ports, Map<Signal, Signal> signals,
+                         Map<Instance, Instance> instances) {
+    }
+
+    private Flattener(Circuit circuit, Entity top) {
+        this.circuit = circuit;
+        result.workLibrary = circuit.workLibrary;
+        Entity entity = new Entity(top.name, top.ports);
+        entity.sourceHash = top.sourceHash;
+        flat = new Architecture(top.architecture.name);
+        flat.setEntity(entity);
+        result.addEntity(entity);
+        result.addArchitecture(flat);
+    }
+
+    /**
+     * Flattens the hierarchy below the given top-level entity.
+     *
+     * @param circuit      the linked circuit.
+     * @param topLevelName the name of the top-level entity.
+     * @return a circuit holding the top-level entity with the flat architecture, followed by the entities
+     * without architecture that are still instantiated, or the given circuit if the top-level entity has no architecture.
+     * @throws IllegalArgumentException if the top-level entity does not exist or an entity instantiates itself.
+     */
+    public static Circuit flatten(Circuit circuit, String topLevelName) {
+        Entity top = circuit.getEntityByName(topLevelName.toLowerCase());
+        if (top == null) {
+            throw new IllegalArgumentException("Top-level entity %s does not exist".formatted(topLevelName));
+        }
+        if (top.architecture == null) {
+            return circuit;
+        }
+        Flattener flattener = new Flattener(circuit, top);
+        Map<String, Expression> ports = new HashMap<>();
+        for (Port port : top.ports) {
+            flattener.names.add(port.name);
+            ports.put(port.name, new PortWire(port.length, port));
+        }
+        flattener.inline(top, new Scope("", ports, new IdentityHashMap<>(), new IdentityHashMap<>()));
+        return flattener.result;
+    }
+
+    /**
+     * Copies the signals, connections and black-box instances of an entity's architecture into the flat
+     * architecture and inlines its other instances.
+     *
+     * @param entity the entity to inline.
+     * @param scope  the wires replacing its ports; its signals and instances are added while inlining.
+     */
+    private void inline(Entity entity, Scope scope) {
+        if (!path.add(entity)) {
+            throw new IllegalArgumentException("Entity %s instantiates itself".formatted(entity.name));
+        }
+        Architecture architecture = entity.architecture;
+        for (Signal signal : architecture.signals) {
+            Signal copy = new Signal(allocate(scope.prefix + signal.name), signal.length, signal.offset);
+            flat.addSignal(copy);
+            scope.signals.put(signal, copy);
+        }
+
+        // the port maps of each inlined instance, by port name
+        Map<Instance, Map<String, Connection>> portMaps = new IdentityHashMap<>();
+        List<Instance> inlined = new ArrayList<>();
+        for (Instance instance : architecture.instances) {
+            Entity child = circuit.getEntityByName(instance.component.name);
+            if (child != null && child.architecture != null) {
+                portMaps.put(instance, new HashMap<>());
+                inlined.add(instance);
+            } else {
+                Instance copy = new Instance(allocate(scope.prefix + instance.name), instance.component);
+                flat.instances.add(copy);
+                scope.instances.put(instance, copy);
+                if (flat.getComponentFromIdent(instance.component.name) == null) {
+                    flat.addComponent(instance.component);
+                }
+                if (child != null && result.getEntityByName(child.name) == null) {
+                    result.addEntity(child);
+                }
+            }
+        }
+
+        for (Connection connection : architecture.connections) {
+            InstancePortWire portWire = connection.from instanceof InstancePortWire wire ? wire
+                    : connection.to instanceof InstancePortWire wire ? wire : null;
+            if (portWire != null && portMaps.containsKey(portWire.instance)) {
+                portMaps.get(portWire.instance).put(portWire.port.name, connection);
+            } else {
+                flat.addConnection(new Connection(map(connection.from, scope), map(connection.to, scope)));
+            }
+        }
+
+        for (Instance instance : inlined) {
+            Entity child = circuit.getEntityByName(instance.component.name);
+            String prefix = scope.prefix + instance.name + "_";
+            Map<String, Expression> ports = new HashMap<>();
+            for (Port port : child.ports) {
+                Connection connection = portMaps.get(instance).get(port.name);
+                Expression actual = connection == null ? null
+                        : map(port.direction == Port.Direction.IN ? connection.from : connection.to, scope);
+                if (isPassThrough(actual)) {
+                    ports.put(port.name, actual);
+                    continue;
+                }
+                // the port drives or is driven by a more complex expression, or is not connected at all
+                Signal signal = new Signal(allocate(prefix + port.name), port.length, port.offset);
+                flat.addSignal(signal);
+                SignalWire wire = new SignalWire(port.length, signal);
+                ports.put(port.name, wire);
+                if (actual != null) {
+                    flat.addConnection(port.direction == Port.Direction.IN
+                            ? new Connection(actual, new SignalWire(port.length, signal))
+                            : new Connection(new SignalWire(port.length, signal), actual));
+                }
+            }
+            inline(child, new Scope(prefix, ports, new IdentityHashMap<>(), new IdentityHashMap<>()));
+        }
+        path.remove(entity);
+    }
+
+    // a wire or a bit range of a wire can replace a port without changing what is driven or read
+    private static boolean isPassThrough(Expression expression) {
+        if (expression instanceof WidthExpression range) {
+            return range.width <= range.source.width && range.source instanceof Wire && !(range.source instanceof ImmediateWire);
+        }
+        return expression instanceof Wire && !(expression instanceof ImmediateWire);
+    }
+
+    /**
+     * Copies an expression of an inlined architecture, replacing its wires by the wires of the flat architecture.
+     *
+     * @param expression the expression to copy.
+     * @param scope      the scope of the inlined instance.
+     * @return the copied expression.
+     */
+    private Expression map(Expression expression, Scope scope) {
+        return switch (expression) {
+            case PortWire wire when wire.port == null -> wire;
+            case PortWire wire -> copy(scope.ports.get(wire.port.name));
+            case SignalWire wire -> new SignalWire(wire.width, scope.signals.get(wire.signal));
+            case InstancePortWire wire -> new InstancePortWire(wire.width, scope.instances.get(wire.instance), wire.port);
+            case WidthExpression expr -> {
+                Expression source = map(expr.source, scope);
+                // a bit range of a bit range is a bit range of the underlying wire
+                if (expr.width <= expr.source.width && source instanceof WidthExpression range && range.width <= range.source.width) {
+                    yield new WidthExpression(expr.width, range.source, range.offset + expr.offset);
+                }
+                yield new WidthExpression(expr.width, source, expr.offset);
+            }
+            case NegationExpression expr -> new NegationExpression(expr.width, map(expr.expression, scope));
+            case OperationExpression expr ->
+                    new OperationExpression(expr.width, map(expr.left, scope), map(expr.right, scope), expr.operation);
+            case null, default -> expression;
+        };
+    }
+
+    // each use of a port gets its own copy, as the expressions of a circuit are trees
+    private static Expression copy(Expression expression) {
+        return expression instanceof WidthExpression range
+                ? new WidthExpression(range.width, range.source, range.offset)
+                : expression;
+    }
+
+    private String allocate(String name) {
+        String unique = name;
+        for (int n = 1; !names.add(unique); n++) {
+            unique = name + "_" + n;
+        }
+        return unique;
+    }
+}
@@ -0,0 +1,200 @@
+package MiniVHDL.Circuit;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Represents a precompiled work library: the names and port signatures of entities declared in other
+ * sources, so components can refer to them without parsing those sources again.
+ * <p>
+ * The library file starts with the magic number, the format version and the number of entities,
+ * followed by an index with the offset of each entity record. The records are sorted by name, so an
+ * entity is found by a binary search on the memory-mapped index and only the entities actually
+ * referenced are ever decoded. A record holds the name, the number of ports and the name, direction,
+ * length and offset of each port; names are stored as their length followed by their UTF-8 bytes.
+ * </p>
+ * <p>
+ * The entities of a library have no architecture unless one is declared in the sources and bound to them.
+ * Each entity is decoded once per library, so all circuits of a compilation share the same {@link Entity} objects.
+ * </p>
+ */
+public class WorkLibrary {
+    private static final int MAGIC = 0x4D56574C; // "MVWL"
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 12;
+
+    private final MappedByteBuffer buffer;
+    private final int count;
+    private final Map<String, Entity> loaded = new ConcurrentHashMap<>();
+
+    private WorkLibrary(MappedByteBuffer buffer, int count) {
+        this.buffer = buffer;
+        this.count = count;
+    }
+
+    /**
+     * Opens a library file by mapping it into memory. No entity is decoded until it is looked up.
+     *
+     * @param file the library file.
+     * @return the opened library.
+     * @throws IOException if the file cannot be read or is not a work library.
+     */
+    public static WorkLibrary open(Path file) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.limit() < HEADER_LENGTH || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException(file + " is not a MiniVHDL work library");
+        }
+        int count = buffer.getInt(8);
+        if (count < 0 || HEADER_LENGTH + 4L * count > buffer.limit()) {
+            throw new IOException(file + " is not a MiniVHDL work library");
+        }
+        return new WorkLibrary(buffer, count);
+    }
+
+    /**
+     * Writes the given entities to a library file. If several entities have the same name, the first one is written.
+     * The file is replaced atomically, so a library that is in use is never seen half-written.
+     *
+     * @param file     the library file.
+     * @param entities the entities to write.
+     * @throws IOException if the file cannot be written.
+     */
+    public static void write(Path file, Collection<Entity> entities) throws IOException {
+        Map<String, Entity> byName = new LinkedHashMap<>();
+        for (Entity entity : entities) {
+            byName.putIfAbsent(entity.name, entity);
+        }
+        List<Entity> sorted = new ArrayList<>(byName.values());
+        sorted.sort(Comparator.comparing(entity -> entity.name.getBytes(StandardCharsets.UTF_8), Arrays::compareUnsigned));
+
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(records);
+        int[] offsets = new int[sorted.size()];
+        int start = HEADER_LENGTH + 4 * sorted.size();
+        for (int i = 0; i < sorted.size(); i++) {
+            Entity entity = sorted.get(i);
+            offsets[i] = start + data.size();
+            writeName(data, entity.name);
+            data.writeShort(entity.ports.size());
+            for (Port port : entity.ports) {
+                writeName(data, port.name);
+                data.writeByte(port.direction.ordinal());
+                data.writeInt(port.length);
+                data.writeInt(port.offset);
+            }
+        }
+
+        Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(sorted.size());
+                for (int offset : offsets) {
+                    out.writeInt(offset);
+                }
+                records.writeTo(out);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void writeName(DataOutputStream data, String name) throws IOException {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        data.writeShort(bytes.length);
+        data.write(bytes);
+    }
+
+    /**
+     * Returns the number of entities in this library.
+     *
+     * @return the number of entities.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Looks up an entity by name, decoding its record on first use.
+     *
+     * @param name the name of the entity.
+     * @return the entity, or {@code null} if the library does not contain it.
+     */
+    public Entity getEntityByName(String name) {
+        Entity entity = loaded.get(name);
+        if (entity == null) {
+            int offset = find(name.getBytes(StandardCharsets.UTF_8));
+            if (offset < 0) {
+                return null;
+            }
+            entity = loaded.computeIfAbsent(name, key -> decode(offset));
+        }
+        return entity;
+    }
+
+    // binary search on the index; returns the offset of the record with the given name, or -1
+    private int find(byte[] name) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int offset = buffer.getInt(HEADER_LENGTH + 4 * mid);
+            byte[] candidate = new byte[buffer.getShort(offset) & 0xffff];
+            buffer.get(offset + 2, candidate);
+            int cmp = Arrays.compareUnsigned(candidate, name);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    // decodes the record at the given offset; absolute reads keep the shared buffer safe for concurrent lookups
+    private Entity decode(int offset) {
+        ByteBuffer record = buffer.slice(offset, buffer.limit() - offset);
+        String name = readName(record);
+        int portCount = record.getShort() & 0xffff;
+        List<Port> ports = new ArrayList<>(portCount);
+        for (int i = 0; i < portCount; i++) {
+            String portName = readName(record);
+            Port.Direction direction = Port.Direction.values()[record.get()];
+            int length = record.getInt();
+            int portOffset = record.getInt();
+            ports.add(new Port(portName, direction, length, portOffset));
+        }
+        return new Entity(name, ports);
+    }
+
+    private static String readName(ByteBuffer record) {
+        byte[] bytes = new byte[record.getShort() & 0xffff];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
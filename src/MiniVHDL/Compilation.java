@@ -0,0 +1,282 @@
+package MiniVHDL;
+
+import MiniVHDL.Circuit.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * The {@code Compilation} parses a set of MiniVHDL source files and links them into a single {@link Circuit}.
+ * <p>
+ * Each file is scanned and parsed on its own virtual thread, with its own {@link Scanner}, {@link Parser}
+ * and partial {@link Circuit}. The link phase merges the entities of all files in the order the files were given.
+ * Components and architectures referring to entities that are not declared in their own file are bound to the
+ * linked entities then, and the checks that need the ports of those entities, such as the widths of the
+ * assignments in such an architecture, run at that point (see {@link Parser#link}). Each file is parsed once.
+ * Finally the architectures are bound to their entities in file order, which makes the result independent of
+ * thread scheduling.
+ * The check for undriven wires runs on the linked circuit and is answered from the {@link ModuleCache} if one is set.
+ * Entities declared in none of the files are looked up in the {@link WorkLibrary}, if one is set.
+ * </p>
+ * <p>
+ * The parsers record their messages as {@link Diagnostic}s, which are rendered in file order once all files
+ * are done, as text and optionally as JSON lines. Each file stops parsing after {@link #maxErrors} errors,
+ * and no more than that many errors are reported in total, so a broken design does not flood the output.
+ * </p>
+ * <p>
+ * The source file {@value #STDIN} is read from {@link #input} as the bytes arrive. A file that cannot be opened
+ * or read is reported as an error of that file, and the other files are still compiled.
+ * </p>
+ */
+class Compilation {
+    /**
+     * The name of the source file that is read from {@link #input} instead of the file system.
+     */
+    public static final String STDIN = "-";
+
+    public final Path directory;
+    public final List<String> files;
+    public ModuleCache cache;
+    public WorkLibrary workLibrary;
+    public int maxErrors = Integer.MAX_VALUE;
+    public PrintStream jsonStream;
+    public InputStream input = System.in;
+    public Circuit circuit;
+    public int errorCount;
+
+    private record Unit(String file, Parser parser) {
+    }
+
+    /**
+     * Creates a compilation of the given source files.
+     *
+     * @param directory the directory relative file paths are resolved against.
+     * @param files     the paths of the MiniVHDL source files, in link order.
+     */
+    public Compilation(Path directory, List<String> files) {
+        this.directory = directory;
+        this.files = files;
+    }
+
+    /**
+     * Expands command-line source arguments into a list of files. A directory contributes all
+     * {@code .vhd} and {@code .vhdl} files below it in sorted order, and {@code @filelist} contributes
+     * the files named in the list, one per line, relative to the list itself. Blank lines and lines
+     * starting with {@code #} are skipped.
+     *
+     * @param directory the directory relative arguments are resolved against.
+     * @param args      the files, directories and file lists to expand, or {@value #STDIN} for the standard input.
+     * @return the source files in the order they were given, relative to the directory unless given as absolute paths.
+     * @throws IOException if a directory or file list cannot be read.
+     */
+    public static List<String> collectSources(Path directory, List<String> args) throws IOException {
+        List<String> sources = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("@")) {
+                Path list = Path.of(arg.substring(1));
+                Path base = list.getParent() != null ? list.getParent() : Path.of("");
+                for (String line : Files.readAllLines(directory.resolve(list))) {
+                    line = line.strip();
+                    if (!line.isEmpty() && !line.startsWith("#")) {
+                        collectSource(directory, base.resolve(line), sources);
+                    }
+                }
+            } else if (arg.equals(STDIN)) {
+                sources.add(STDIN);
+            } else {
+                collectSource(directory, Path.of(arg), sources);
+            }
+        }
+        return sources;
+    }
+
+    private static void collectSource(Path directory, Path path, List<String> sources) throws IOException {
+        Path resolved = directory.resolve(path);
+        if (!Files.isDirectory(resolved)) {
+            sources.add(path.toString());
+            return;
+        }
+        try (Stream<Path> files = Files.walk(resolved)) {
+            files.filter(Files::isRegularFile)
+                    .filter(file -> {
+                        String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+                        return name.endsWith(".vhd") || name.endsWith(".vhdl");
+                    })
+                    .map(file -> path.resolve(resolved.relativize(file)).toString())
+                    .sorted()
+                    .forEach(sources::add);
+        }
+    }
+
+    /**
+     * Parses all files in parallel, links them and reports the messages of each file in file order.
+     * The linked circuit is stored in {@link #circuit} and the total number of errors in {@link #errorCount}.
+     * If {@link #jsonStream} is set, the messages are also written to it as JSON lines.
+     *
+     * @param errorStream the stream the error messages are written to.
+     */
+    public void compile(PrintStream errorStream) {
+        List<Unit> units = parse(files);
+
+        // link the entities of all files; the first declaration of a name wins
+        Circuit linked = new Circuit();
+        linked.workLibrary = workLibrary;
+        Map<String, String> declaredIn = new HashMap<>();
+        List<String> linkFiles = new ArrayList<>();
+        List<Diagnostic> linkErrors = new ArrayList<>();
+        for (Unit unit : units) {
+            for (Entity entity : unit.parser.circuit.entities) {
+                String first = declaredIn.putIfAbsent(entity.name, unit.file);
+                if (first != null && !first.equals(unit.file)) {
+                    linkFiles.add(unit.file);
+                    linkErrors.add(new Diagnostic(0, 0, "LINK", "entity %s is already declared in %s".formatted(entity.name, first)));
+                }
+                linked.addEntity(entity);
+            }
+        }
+
+        // bind the references to entities of other files; each file only touches its own architectures
+        units.parallelStream().forEach(unit -> link(unit, linked));
+        for (Unit unit : units) {
+            unit.parser.circuit.architectures.forEach(linked::addArchitecture);
+        }
+        circuit = linked;
+        units.parallelStream().forEach(this::checkUndrivenWires);
+
+        errorCount = linkErrors.size();
+        StringBuilder text = new StringBuilder();
+        StringBuilder json = new StringBuilder();
+        int reported = 0;
+        for (Unit unit : units) {
+            errorCount += unit.parser.errors.count;
+            List<Diagnostic> diagnostics = unit.parser.errors.diagnostics;
+            if (files.size() > 1 && !diagnostics.isEmpty() && reported < maxErrors) {
+                text.append("-- ").append(unit.file).append(System.lineSeparator());
+            }
+            for (Diagnostic diagnostic : diagnostics) {
+                if (reported >= maxErrors) {
+                    break;
+                }
+                report(diagnostic, unit.file, text, json);
+                if (diagnostic.isError()) {
+                    reported++;
+                }
+            }
+        }
+        for (int i = 0; i < linkErrors.size() && reported < maxErrors; i++, reported++) {
+            text.append("-- ").append(linkFiles.get(i)).append(": ");
+            report(linkErrors.get(i), linkFiles.get(i), text, json);
+        }
+        if (errorCount >= maxErrors) {
+            text.append("-- ");
+            report(new Diagnostic(0, 0, "MAX-ERRORS", "stopped after %d errors".formatted(maxErrors)), null, text, json);
+        }
+        errorStream.print(text);
+        if (jsonStream != null) {
+            jsonStream.print(json);
+        }
+    }
+
+    private void report(Diagnostic diagnostic, String file, StringBuilder text, StringBuilder json) {
+        diagnostic.appendText(text);
+        if (jsonStream != null) {
+            diagnostic.appendJson(json, file);
+        }
+    }
+
+    private void link(Unit unit, Circuit linked) {
+        if (unit.parser.errors.count >= maxErrors) {
+            // the parse stopped early, so its references are incomplete
+            return;
+        }
+        try {
+            unit.parser.link(linked);
+        } catch (ErrorLimitException e) {
+            // the report is recorded, there is nothing left to check
+        }
+    }
+
+    private void checkUndrivenWires(Unit unit) {
+        if (unit.parser.errors.count >= maxErrors) {
+            // the file stopped early, so its connections are incomplete
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Architecture architecture : unit.parser.circuit.architectures) {
+            if (architecture.entity == null) {
+                continue;
+            }
+            String undriven = cache != null ? cache.getUndrivenWires(architecture, circuit) : architecture.getUndrivenWires();
+            if (!undriven.isEmpty()) {
+                sb.append(undriven).append("\n");
+            }
+        }
+        if (!sb.isEmpty()) {
+            try {
+                unit.parser.SemErrAtEnd("The following wires are not driven:\n%s".formatted(sb));
+            } catch (ErrorLimitException e) {
+                // the report is recorded, there is nothing left to parse
+            }
+        }
+    }
+
+    private List<Unit> parse(List<String> files) {
+        List<Future<Unit>> futures = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (String file : files) {
+                futures.add(executor.submit(() -> parse(file)));
+            }
+        }
+        List<Unit> units = new ArrayList<>();
+        for (Future<Unit> future : futures) {
+            try {
+                units.add(future.get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException cause) {
+                    throw cause;
+                }
+                throw new IllegalStateException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+        return units;
+    }
+
+    private Unit parse(String file) {
+        try {
+            Scanner scanner = file.equals(STDIN) ? new Scanner(input) : new Scanner(directory.resolve(file).toString());
+            Parser parser = new Parser(scanner);
+            parser.workLibrary = workLibrary;
+            parser.hashSources = cache != null;
+            parser.errors.maxErrors = maxErrors;
+            try {
+                parser.Parse();
+            } catch (ErrorLimitException e) {
+                parser.scanner.buffer.Close();
+            }
+            return new Unit(file, parser);
+        } catch (FatalError e) {
+            // the file cannot be read, so it contributes nothing but this error
+            Parser parser = new Parser(null);
+            parser.circuit = new Circuit();
+            parser.errors.report(0, 0, "FATAL", e.getMessage());
+            parser.errors.countError();
+            return new Unit(file, parser);
+        }
+    }
+}
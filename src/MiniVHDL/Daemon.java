@@ -0,0 +1,271 @@
+package MiniVHDL;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The {@code Daemon} keeps a JVM with a warmed-up {@link Scanner}, {@link Parser} and {@link Generator}
+ * running and serves compile requests over a Unix-domain socket, so a build that invokes the compiler
+ * many times pays for JVM startup and JIT compilation only once.
+ * <p>
+ * A request carries the working directory of the client and the usual command-line arguments. Each
+ * request is compiled on its own thread with its own {@link Compilation} and output streams (see
+ * {@link Main#compile}), so requests run concurrently without sharing state. The output is streamed
+ * back in frames of one byte for the stream (1 for standard output, 2 for standard error) followed by
+ * the length and the bytes; the last frame is a 0 followed by the exit code.
+ * The daemon shuts down once no request has been active for the idle timeout.
+ * Compilations that read the standard input are not forwarded.
+ * </p>
+ */
+class Daemon {
+    private static final int EXIT = 0;
+    private static final int OUT = 1;
+    private static final int ERR = 2;
+    private static final long DEFAULT_IDLE_TIMEOUT = 600;
+
+    /**
+     * Runs the daemon until the idle timeout expires.
+     *
+     * @param args the options <code>--socket &lt;path&gt;</code> and <code>--idle-timeout &lt;seconds&gt;</code>.
+     * @return the exit code of the daemon.
+     */
+    public static int serve(List<String> args) {
+        Path socket = getDefaultSocket();
+        long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+        for (int i = 0; i < args.size(); i++) {
+            switch (args.get(i)) {
+                case "--socket" -> socket = Path.of(args.get(++i));
+                case "--idle-timeout" -> {
+                    try {
+                        idleTimeout = Long.parseLong(args.get(++i));
+                    } catch (NumberFormatException e) {
+                        idleTimeout = 0;
+                    }
+                    if (idleTimeout < 1) {
+                        System.err.printf("Error: Invalid idle timeout %s%n", args.get(i));
+                        return 1;
+                    }
+                }
+                default -> {
+                    System.err.printf("Error: Unknown option %s%n", args.get(i));
+                    return 1;
+                }
+            }
+        }
+
+        if (Files.exists(socket)) {
+            SocketChannel probe = null;
+            try {
+                probe = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+                System.err.printf("Error: A daemon is already listening on %s%n", socket);
+                return 1;
+            } catch (IOException e) {
+                // a stale socket of a daemon that did not shut down cleanly
+            } finally {
+                close(probe);
+            }
+        }
+
+        AtomicInteger active = new AtomicInteger();
+        AtomicLong lastActivity = new AtomicLong(System.nanoTime());
+        AtomicBoolean idle = new AtomicBoolean();
+        Thread acceptor = Thread.currentThread();
+        ExecutorService workers = Executors.newCachedThreadPool();
+        ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor();
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            Files.deleteIfExists(socket);
+            server.bind(UnixDomainSocketAddress.of(socket));
+            System.out.printf("MiniVHDL daemon listening on %s%n", socket);
+
+            long timeout = TimeUnit.SECONDS.toNanos(idleTimeout);
+            long period = Math.clamp(idleTimeout, 1, 10);
+            watchdog.scheduleAtFixedRate(() -> {
+                if (active.get() == 0 && System.nanoTime() - lastActivity.get() > timeout && !idle.getAndSet(true)) {
+                    // interrupting the blocked accept closes the channel and ends the accept loop
+                    acceptor.interrupt();
+                }
+            }, period, period, TimeUnit.SECONDS);
+
+            while (!idle.get()) {
+                SocketChannel client;
+                try {
+                    client = server.accept();
+                } catch (ClosedByInterruptException e) {
+                    break;
+                }
+                active.incrementAndGet();
+                workers.execute(() -> {
+                    try (client) {
+                        handle(client);
+                    } catch (IOException e) {
+                        // the client went away, there is no one left to report to
+                    } finally {
+                        lastActivity.set(System.nanoTime());
+                        active.decrementAndGet();
+                    }
+                });
+            }
+        } catch (IOException e) {
+            System.err.printf("Error: Cannot listen on %s: %s%n", socket, e.getMessage());
+            return 1;
+        } finally {
+            watchdog.shutdownNow();
+            // the watchdog may have interrupted this thread, which would also interrupt waiting for the workers
+            Thread.interrupted();
+            workers.close();
+            try {
+                Files.deleteIfExists(socket);
+            } catch (IOException e) {
+                // the next daemon removes the stale socket
+            }
+        }
+        System.out.println("MiniVHDL daemon stopped after idle timeout");
+        return 0;
+    }
+
+    /**
+     * Forwards a compilation to the daemon and replays its output. If no daemon is listening,
+     * the compilation runs in this process instead.
+     *
+     * @param args the option <code>--socket &lt;path&gt;</code> followed by the arguments of {@link Main#compile}.
+     * @return the exit code of the compilation.
+     */
+    public static int forward(List<String> args) {
+        Path socket = getDefaultSocket();
+        if (args.size() >= 2 && args.getFirst().equals("--socket")) {
+            socket = Path.of(args.get(1));
+            args = args.subList(2, args.size());
+        }
+        Path directory = Path.of("").toAbsolutePath();
+        if (args.contains(Compilation.STDIN)) {
+            // the standard input of the client is not forwarded, so such compilations run here
+            return Main.compile(Path.of(""), args, System.out, System.err);
+        }
+
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        } catch (IOException e) {
+            return Main.compile(Path.of(""), args, System.out, System.err);
+        }
+        try (channel) {
+            DataOutputStream request = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            request.writeUTF(directory.toString());
+            request.writeInt(args.size());
+            for (String arg : args) {
+                request.writeUTF(arg);
+            }
+            request.flush();
+
+            DataInputStream response = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            while (true) {
+                int stream = response.readUnsignedByte();
+                if (stream == EXIT) {
+                    return response.readInt();
+                }
+                byte[] bytes = new byte[response.readInt()];
+                response.readFully(bytes);
+                (stream == ERR ? System.err : System.out).write(bytes);
+            }
+        } catch (IOException e) {
+            System.err.printf("Error: Lost connection to daemon on %s%n", socket);
+            return 1;
+        } finally {
+            System.out.flush();
+            System.err.flush();
+        }
+    }
+
+    private static void handle(SocketChannel client) throws IOException {
+        DataInputStream request = new DataInputStream(new BufferedInputStream(Channels.newInputStream(client)));
+        Path directory = Path.of(request.readUTF());
+        int count = request.readInt();
+        List<String> args = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            args.add(request.readUTF());
+        }
+
+        DataOutputStream response = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client)));
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FrameOutputStream(response, OUT)));
+        PrintStream err = new PrintStream(new BufferedOutputStream(new FrameOutputStream(response, ERR)));
+        int exitCode;
+        try {
+            exitCode = Main.compile(directory, args, out, err);
+        } catch (RuntimeException | StackOverflowError e) {
+            err.printf("Error: %s%n", e);
+            exitCode = 1;
+        }
+        out.flush();
+        err.flush();
+        synchronized (response) {
+            response.writeByte(EXIT);
+            response.writeInt(exitCode);
+            response.flush();
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing was sent over the channel
+        }
+    }
+
+    private static Path getDefaultSocket() {
+        return Path.of(System.getProperty("java.io.tmpdir"), "minivhdl-" + System.getProperty("user.name") + ".sock");
+    }
+
+    /**
+     * Writes everything as frames of one stream of a response.
+     */
+    private static class FrameOutputStream extends OutputStream {
+        private final DataOutputStream response;
+        private final int stream;
+
+        FrameOutputStream(DataOutputStream response, int stream) {
+            this.response = response;
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (response) {
+                response.writeByte(stream);
+                response.writeInt(len);
+                response.write(b, off, len);
+                response.flush();
+            }
+        }
+    }
+}
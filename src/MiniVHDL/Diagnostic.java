@@ -0,0 +1,80 @@
+package MiniVHDL;
+
+/**
+ * A single message reported while compiling a source file.
+ *
+ * @param line    the line the message refers to, or 0 if it has no position.
+ * @param col     the column the message refers to, or 0 if it has no position.
+ * @param code    the kind of the message: {@code SYN<n>} for a syntax error where token or production
+ *                {@code n} was expected, {@code SEM} for a semantic error, {@code LINK} for an error
+ *                found while linking files, {@code FATAL} for a file that cannot be read, {@code MAX-ERRORS}
+ *                for the note that the error limit was reached and {@code WARN} for a warning.
+ * @param message the human-readable text of the message.
+ */
+public record Diagnostic(int line, int col, String code, String message) {
+
+    /**
+     * Checks whether this message counts as an error.
+     *
+     * @return {@code false} for warnings, {@code true} otherwise.
+     */
+    public boolean isError() {
+        return !code.equals("WARN");
+    }
+
+    /**
+     * Appends this message in the text format {@code -- line <line> col <col>: <message>},
+     * or just the message if it has no position.
+     *
+     * @param sb the builder to append to.
+     */
+    public void appendText(StringBuilder sb) {
+        if (line > 0) {
+            sb.append("-- line ").append(line).append(" col ").append(col).append(": ");
+        }
+        sb.append(message).append(System.lineSeparator());
+    }
+
+    /**
+     * Appends this message as one line of JSON with the fields {@code file}, {@code line},
+     * {@code col}, {@code code} and {@code message}.
+     *
+     * @param sb   the builder to append to.
+     * @param file the source file the message belongs to, or {@code null}.
+     */
+    public void appendJson(StringBuilder sb, String file) {
+        sb.append("{\"file\":");
+        appendJsonString(sb, file);
+        sb.append(",\"line\":").append(line).append(",\"col\":").append(col).append(",\"code\":");
+        appendJsonString(sb, code);
+        sb.append(",\"message\":");
+        appendJsonString(sb, message);
+        sb.append("}\n");
+    }
+
+    private static void appendJsonString(StringBuilder sb, String value) {
+        if (value == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        sb.append("\\u%04x".formatted((int) c));
+                    } else {
+                        sb.append(c);
+                    }
+                }
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,18 @@
+package MiniVHDL;
+
+/**
+ * Thrown by the {@code Errors} of a {@link Parser} once a file has reached its error limit,
+ * which stops parsing that file. The errors found so far stay recorded.
+ */
+class ErrorLimitException extends RuntimeException {
+    public static final long serialVersionUID = 1L;
+
+    /**
+     * Creates the exception for the given number of errors.
+     *
+     * @param count the number of errors found in the file.
+     */
+    public ErrorLimitException(int count) {
+        super("stopped after " + count + " errors");
+    }
+}
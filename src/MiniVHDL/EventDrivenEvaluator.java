@@ -0,0 +1,109 @@
+package MiniVHDL;
+
+import java.util.Arrays;
+
+/**
+ * The {@code EventDrivenEvaluator} re-evaluates only the fan-out cone of the inputs that changed since the last evaluation.
+ * <p>
+ * The fan-out graph maps every slot of the {@link Netlist} to the gates reading it. Since the netlist resolves
+ * connections, including those through the ports of instances, to the slots driving them, the graph crosses the
+ * hierarchy without any extra step. An input whose word differs from the last evaluation schedules its readers,
+ * and a gate whose output changes schedules its own readers in turn; a gate whose output stays the same ends
+ * the propagation along its path.
+ * </p>
+ * <p>
+ * The gates of the netlist are numbered in level order, so every reader of a gate has a higher number than the
+ * gate itself. The scheduled gates are kept in a bit set that is scanned once in ascending order, which evaluates
+ * them level by level and each of them at most once, after all gates it reads have settled.
+ * </p>
+ * <p>
+ * The first evaluation evaluates all gates. Afterwards the gate outputs in the state must only be changed by
+ * this evaluator, while the inputs may be set freely.
+ * </p>
+ */
+class EventDrivenEvaluator implements Simulator.Evaluator {
+    private final Netlist netlist;
+    private final int firstTarget;
+    private final int[] inputSlots;
+    private final long[] lastInputs;
+    // the readers of slot s are fanouts[fanoutStarts[s]] up to fanouts[fanoutStarts[s + 1] - 1]
+    private final int[] fanoutStarts;
+    private final int[] fanouts;
+    private final long[] scheduled;
+    private boolean settled;
+
+    /**
+     * Builds the fan-out graph of a netlist.
+     *
+     * @param netlist the netlist to evaluate.
+     */
+    public EventDrivenEvaluator(Netlist netlist) {
+        this.netlist = netlist;
+        firstTarget = netlist.slotCount - netlist.gateCount;
+        inputSlots = netlist.inputs.values().stream().flatMapToInt(Arrays::stream).toArray();
+        lastInputs = new long[inputSlots.length];
+        scheduled = new long[(netlist.gateCount + 63) >>> 6];
+
+        fanoutStarts = new int[netlist.slotCount + 1];
+        for (int g = 0; g < netlist.gateCount; g++) {
+            fanoutStarts[netlist.lefts[g] + 1]++;
+            if (netlist.ops[g] != Netlist.NOT && netlist.rights[g] != netlist.lefts[g]) {
+                fanoutStarts[netlist.rights[g] + 1]++;
+            }
+        }
+        for (int s = 0; s < netlist.slotCount; s++) {
+            fanoutStarts[s + 1] += fanoutStarts[s];
+        }
+        fanouts = new int[fanoutStarts[netlist.slotCount]];
+        int[] next = Arrays.copyOf(fanoutStarts, netlist.slotCount);
+        for (int g = 0; g < netlist.gateCount; g++) {
+            fanouts[next[netlist.lefts[g]]++] = g;
+            if (netlist.ops[g] != Netlist.NOT && netlist.rights[g] != netlist.lefts[g]) {
+                fanouts[next[netlist.rights[g]]++] = g;
+            }
+        }
+    }
+
+    @Override
+    public void eval(long[] state) {
+        if (!settled) {
+            Arrays.fill(scheduled, -1L);
+            settled = true;
+        }
+        for (int i = 0; i < inputSlots.length; i++) {
+            long value = state[inputSlots[i]];
+            if (value != lastInputs[i]) {
+                lastInputs[i] = value;
+                schedule(inputSlots[i]);
+            }
+        }
+
+        int[] ops = netlist.ops;
+        int[] lefts = netlist.lefts;
+        int[] rights = netlist.rights;
+        int gateCount = netlist.gateCount;
+        for (int w = 0; w < scheduled.length; w++) {
+            // readers come later, so bits set in this word while it is scanned are still seen
+            while (scheduled[w] != 0) {
+                int g = w << 6 | Long.numberOfTrailingZeros(scheduled[w]);
+                scheduled[w] &= scheduled[w] - 1;
+                if (g >= gateCount) {
+                    continue;
+                }
+                int target = firstTarget + g;
+                long value = Simulator.apply(ops[g], state[lefts[g]], state[rights[g]]);
+                if (value != state[target]) {
+                    state[target] = value;
+                    schedule(target);
+                }
+            }
+        }
+    }
+
+    private void schedule(int slot) {
+        for (int i = fanoutStarts[slot]; i < fanoutStarts[slot + 1]; i++) {
+            int g = fanouts[i];
+            scheduled[g >>> 6] |= 1L << g;
+        }
+    }
+}
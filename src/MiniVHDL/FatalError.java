@@ -0,0 +1,18 @@
+package MiniVHDL;
+
+/**
+ * Thrown by the {@link Scanner} when a source file cannot be opened or read, or does not start like a text file,
+ * which stops parsing that file. The {@link Compilation} reports it as an error of the file.
+ */
+class FatalError extends RuntimeException {
+    public static final long serialVersionUID = 1L;
+
+    /**
+     * Creates the exception with the given message.
+     *
+     * @param s the description of the failure.
+     */
+    public FatalError(String s) {
+        super(s);
+    }
+}
@@ -0,0 +1,173 @@
+package MiniVHDL;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * The {@code GenerationBenchmark} times the FIRRTL generation of a synthetic design with long operator chains,
+ * the case where the serialization of deep expression trees dominates the run time.
+ * <p>
+ * The design is an entity {@value #TOP} with two inputs {@code a} and {@code b} of {@code operands} bits and an
+ * output {@code y} with one bit per assignment. Each assignment drives one bit of {@code y} from a left-nested chain
+ * of {@code operands} operands, alternating between {@code XOR} and {@code AND} and rotated by one bit per assignment.
+ * The design is compiled once and then generated {@value #RUNS} times into a writer that only counts and hashes the
+ * characters, after a first run that lets the JIT compile the generator. The source can also be written to a file,
+ * so builds without this benchmark can be timed on the same design.
+ * </p>
+ */
+class GenerationBenchmark {
+    public static final String TOP = "chain";
+    public static final int RUNS = 5;
+
+    /**
+     * Compiles the chain design and reports the time of each generation run.
+     *
+     * @param directory the working directory the source file path is resolved against.
+     * @param args      the number of operands per chain and the number of assignments,
+     *                  optionally followed by a file to write the VHDL source to.
+     * @param out       the stream for the report.
+     * @param err       the stream for usage and I/O errors.
+     * @return 0 if the design was generated and all runs wrote the same program, 1 otherwise.
+     */
+    public static int run(Path directory, List<String> args, PrintStream out, PrintStream err) {
+        if (args.size() != 2 && args.size() != 3) {
+            err.println("Error: Missing required arguments. Usage: java Main --benchmark-generation <operands> <assignments> [<file>]");
+            return 1;
+        }
+        int operands;
+        int assignments;
+        try {
+            operands = Integer.parseInt(args.get(0));
+        } catch (NumberFormatException e) {
+            operands = 0;
+        }
+        if (operands < 2) {
+            err.printf("Error: Invalid number of operands %s%n", args.get(0));
+            return 1;
+        }
+        try {
+            assignments = Integer.parseInt(args.get(1));
+        } catch (NumberFormatException e) {
+            assignments = 0;
+        }
+        if (assignments < 1) {
+            err.printf("Error: Invalid number of assignments %s%n", args.get(1));
+            return 1;
+        }
+
+        String source = chainSource(operands, assignments);
+        if (args.size() == 3) {
+            try {
+                Files.writeString(directory.resolve(args.get(2)), source);
+            } catch (IOException e) {
+                err.printf("Error: Cannot write source %s%n", args.get(2));
+                return 1;
+            }
+        }
+
+        Compilation compilation = new Compilation(directory, List.of(Compilation.STDIN));
+        compilation.input = new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8));
+        long start = System.nanoTime();
+        compilation.compile(out);
+        if (compilation.errorCount > 0) {
+            return 1;
+        }
+        out.printf("%d assignments of %d operands compiled in %.1f ms%n", assignments, operands, (System.nanoTime() - start) / 1e6);
+
+        try {
+            generate(compilation);
+            Long expected = null;
+            for (int run = 1; run <= RUNS; run++) {
+                start = System.nanoTime();
+                HashingWriter writer = generate(compilation);
+                out.printf("run %d: generated in %.1f ms, %d characters, output checksum %016x%n",
+                        run, (System.nanoTime() - start) / 1e6, writer.length, writer.checksum);
+                if (expected != null && writer.checksum != expected) {
+                    err.printf("Error: The output of run %d differs from that of run 1%n", run);
+                    return 1;
+                }
+                expected = writer.checksum;
+            }
+        } catch (IOException e) {
+            e.printStackTrace(err);
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the VHDL source of the chain design.
+     *
+     * @param operands    the number of operands of each chain.
+     * @param assignments the number of chains.
+     * @return the source of the entity {@value #TOP} and its architecture.
+     */
+    public static String chainSource(int operands, int assignments) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("LIBRARY IEEE;\nUSE IEEE.STD_LOGIC_1164.ALL;\n");
+        sb.append("ENTITY ").append(TOP).append(" IS\n  PORT (\n");
+        sb.append("    a, b : IN STD_ULOGIC_VECTOR(").append(operands - 1).append(" DOWNTO 0);\n");
+        sb.append("    y : OUT STD_ULOGIC_VECTOR(").append(assignments - 1).append(" DOWNTO 0));\nEND;\n\n");
+        sb.append("ARCHITECTURE bench OF ").append(TOP).append(" IS\nBEGIN\n");
+        for (int k = 0; k < assignments; k++) {
+            sb.append("  y(").append(k).append(") <= a(").append(k % operands).append(')');
+            for (int i = 1; i < operands; i++) {
+                sb.append(i % 2 == 1 ? " XOR " : " AND ")
+                        .append(i % 2 == 1 ? 'b' : 'a')
+                        .append('(').append((i + k) % operands).append(')');
+            }
+            sb.append(";\n");
+        }
+        sb.append("END;\n");
+        return sb.toString();
+    }
+
+    private static HashingWriter generate(Compilation compilation) throws IOException {
+        Generator generator = new Generator();
+        HashingWriter writer = new HashingWriter();
+        generator.generate(TOP, compilation.circuit, writer);
+        return writer;
+    }
+
+    // discards the program, keeping only its length and a checksum of its characters
+    private static class HashingWriter extends Writer {
+        long length;
+        long checksum;
+
+        @Override
+        public void write(char[] buffer, int offset, int count) {
+            for (int i = offset; i < offset + count; i++) {
+                checksum = checksum * 31 + buffer[i];
+            }
+            length += count;
+        }
+
+        @Override
+        public void write(int c) {
+            checksum = checksum * 31 + (char) c;
+            length++;
+        }
+
+        @Override
+        public void write(String text, int offset, int count) {
+            for (int i = offset; i < offset + count; i++) {
+                checksum = checksum * 31 + text.charAt(i);
+            }
+            length += count;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
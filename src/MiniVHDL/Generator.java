@@ -4,8 +4,18 @@ import MiniVHDL.Circuit.Expression.*;
 import MiniVHDL.Circuit.Wire.*;
 
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * The {@code Generator} class is responsible for generating FIRRTL code
@@ -14,8 +24,22 @@ import java.util.List;
  * and compliance with FIRRTL syntax.
  */
 class Generator {
-    StringBuilder program;
-    int depth;
+    private static final String INDENTATION = "  ".repeat(16);
+
+    ModuleCache cache;
+
+    /**
+     * The signals and connections of an {@link Architecture} after indexed assignments have been resolved,
+     * and the allocator of the temporary names created in it.
+     * The generator works on this copy, so the {@link Circuit} is never modified and can be shared by
+     * several generators and modules generated in parallel.
+     */
+    private record Lowering(List<Signal> signals, List<Connection> connections, NameAllocator names) {
+    }
+
+    // marks an expression on the stack of ModuleGenerator.appendNodes() whose subexpressions are prepared
+    private record Prepared(Expression expression) {
+    }
 
     /**
      * Generates FIRRTL code for the specified circuit and top-level module.
@@ -25,110 +49,67 @@ class Generator {
      * @return a string containing the FIRRTL representation of the circuit.
      */
     public String generate(String circuitName, Circuit circuit) {
-        circuitName=circuitName.toLowerCase();
-        program = new StringBuilder();
-        resolveIndexedAssignment(circuit);
-        depth = 0;
-        append("circuit %s :".formatted(circuitName));
-        depth++;
-        for (Entity entity : circuit.entities) {
-            generateEntity(entity);
+        StringWriter writer = new StringWriter();
+        try {
+            generate(circuitName, circuit, writer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        depth--;
-        return program.toString();
+        return writer.toString();
     }
 
     /**
-     * Generates the FIRRTL representation for a specific {@link Entity}.
+     * Generates FIRRTL code for the specified circuit and top-level module and streams it
+     * module by module to the given writer.
+     * Only the modules reachable from the top-level module through instances are lowered and emitted.
+     * Each module is generated into its own buffer on the common {@link ForkJoinPool}, at most twice as many
+     * modules as the pool has threads ahead of the writer. Each buffer is written and released as soon as all modules
+     * before it are written, so the output is the same as when generating one after another, and only the modules
+     * of that window are held in memory.
+     * If a {@link ModuleCache} is set, modules of unchanged design units are copied from the cache
+     * and all other modules are stored in it.
      *
-     * @param entity the entity to be translated into FIRRTL.
+     * @param circuitName the name of the top-level module in the circuit.
+     * @param circuit     the {@link Circuit} object representing the MiniVHDL design.
+     * @param writer      the writer the FIRRTL program is written to; it is neither flushed nor closed.
+     * @throws IOException if writing to the writer fails.
      */
-    private void generateEntity(Entity entity) {
-        append("module %s :".formatted(entity.name));
-        depth++;
-        for (Port port : entity.ports) {
-            if (port.direction == Port.Direction.IN) {
-                append("input %s : UInt<%d>".formatted(port.name, port.length));
-            } else if (port.direction == Port.Direction.OUT) {
-                append("output %s : UInt<%d>".formatted(port.name, port.length));
+    public void generate(String circuitName, Circuit circuit, Writer writer) throws IOException {
+        circuitName=circuitName.toLowerCase();
+        List<Entity> entities = circuit.getReachableEntities(circuitName);
+        writer.write("circuit " + circuitName + " :\n");
+        // generate at most a window of modules ahead of the writer, so only those are held in memory
+        int window = 2 * ForkJoinPool.getCommonPoolParallelism();
+        ArrayDeque<ForkJoinTask<String>> pending = new ArrayDeque<>(window);
+        int next = 0;
+        while (next < entities.size() || !pending.isEmpty()) {
+            while (next < entities.size() && pending.size() < window) {
+                Entity entity = entities.get(next++);
+                pending.add(ForkJoinTask.adapt(() -> generateModule(entity, circuit)).fork());
             }
+            writer.write(pending.poll().join());
         }
-        Architecture architecture = entity.architecture;
-        program.append("\n");
-
-        for (Signal signal : architecture.signals) {
-            append("wire %s : UInt<%d>".formatted(signal.name, signal.length));
-        }
-        program.append("\n");
-
-        for (Instance instance : architecture.instances) {
-            append("inst %s of %s".formatted(instance.name, instance.component.name));
-        }
-        program.append("\n");
-
-        for (Connection connection : architecture.connections) {
-            append("%s<=%s".formatted(serializeExpression(connection.to), serializeExpression(connection.from)));
-        }
-
-        depth--;
     }
 
     /**
-     * Serializes a given {@link Expression} into its FIRRTL representation.
+     * Generates the FIRRTL module of an entity, or copies it from the {@link ModuleCache} if the design unit is unchanged.
      *
-     * @param expression the expression to be serialized.
-     * @return a string containing the FIRRTL representation of the expression.
+     * @param entity  the entity to be translated into FIRRTL.
+     * @param circuit the linked circuit used to compute the cache key.
+     * @return the text of the module.
      */
-    private String serializeExpression(Expression expression) {
-        StringBuilder sb = new StringBuilder();
-        switch (expression) {
-            case NegationExpression expr -> sb.append("not(%s)".formatted(serializeExpression(expr.expression)));
-            case OperationExpression expr -> {
-                String operands = "%s,%s".formatted(serializeExpression(expr.left), serializeExpression(expr.right));
-                OperationExpression.Operation op = expr.operation;
-                if (op == OperationExpression.Operation.OR) {
-                    sb.append("or(%s)".formatted(operands));
-                } else if (op == OperationExpression.Operation.AND) {
-                    sb.append("and(%s)".formatted(operands));
-                } else if (op == OperationExpression.Operation.XOR) {
-                    sb.append("xor(%s)".formatted(operands));
-                } else if (op == OperationExpression.Operation.CAT) {
-                    sb.append("cat(%s)".formatted(operands));
-                } else if (op == OperationExpression.Operation.NOR) {
-                    sb.append("not(or(%s))".formatted(operands));
-                } else if (op == OperationExpression.Operation.NAND) {
-                    sb.append("not(and(%s))".formatted(operands));
-                } else if (op == OperationExpression.Operation.XNOR) {
-                    sb.append("not(xor(%s))".formatted(operands));
-                }
-            }
-            case WidthExpression expr -> {
-                String serializedSource = serializeExpression(expr.source);
-                if (expr.width <= expr.source.width) {
-                    sb.append("bits(%s,%d,%d)".formatted(serializedSource, expr.offset + expr.width - 1, expr.offset));
-                } else {
-                    if (expr.width > 1) {
-                        sb.append("cat(".repeat(expr.width - 1));
-                        sb.append(serializedSource).append(", ");
-                        sb.append((serializedSource + "), ").repeat(expr.width - 2));
-                        sb.append(serializedSource).append(")");
-                    }
-                }
-            }
-            case PortWire wire -> sb.append(wire.port.name);
-            case SignalWire wire -> sb.append(wire.signal.name);
-            case InstancePortWire wire -> sb.append(wire.instance.name).append(".").append(wire.port.name);
-            case ImmediateWire wire -> {
-                StringBuilder val = new StringBuilder();
-                for (int i = 0; i < wire.width; i++) {
-                    val.append(wire.value[i] ? "1" : "0");
-                }
-                sb.append("UInt<%d>(\"b%s\")".formatted(wire.width, val));
-            }
-            case null, default -> {
+    private String generateModule(Entity entity, Circuit circuit) {
+        String key = cache != null ? cache.getKey(entity.architecture, circuit) : null;
+        String text = key != null ? cache.getModule(key) : null;
+        if (text == null) {
+            ModuleGenerator module = new ModuleGenerator();
+            module.generateEntity(entity, entity.architecture == null ? null : resolveIndexedAssignment(entity.architecture));
+            text = module.out.toString();
+            if (key != null) {
+                cache.putModule(key, text);
             }
         }
-        return sb.toString();
+        return text;
     }
 
     /**
@@ -136,117 +117,351 @@ class Generator {
      * <p>
      * This process creates intermediate 1-bit wires for each bit of the indexed wire.
      * These intermediate wires are then concatenated and assigned to the target wire.
+     * Indexed assignments are grouped by their target wire in a single pass, so the
+     * lowering is linear in the number of connections. The result is returned as a {@link Lowering}
+     * of the architecture, which leaves the architecture itself unchanged.
      * </p>
      *
-     * @param circuit the {@link Circuit} containing the connections to be resolved.
+     * @param architecture the architecture containing the connections to be resolved.
+     * @return the lowered signals and connections of the architecture.
      */
-    private void resolveIndexedAssignment(Circuit circuit) {
-        for (Entity entity : circuit.entities) {
-            Architecture architecture = entity.architecture;
-            int i = 0;
-            while (i < architecture.connections.size()) {
-                Connection connection = architecture.connections.get(i);
-                if (connection.to instanceof WidthExpression expr) {
-                    Wire wire = (Wire) expr.source;
-                    String prefix = getUniquePrefix(architecture, wire.getName());
-                    List<Signal> tempSignals = new ArrayList<>();
-                    for (int j = 0; j < wire.width; j++) {
-                        Signal signal = new Signal(prefix + j, 1, 0);
-                        architecture.signals.add(signal);
-                        tempSignals.add(signal);
-                    }
-                    replaceAllAssignments(architecture, wire, tempSignals);
-                    Expression from = new SignalWire(1, tempSignals.getFirst());
-                    for (int j = 1; j < tempSignals.size(); j++) {
-                        from = new OperationExpression(j + 1, new SignalWire(1, tempSignals.get(j)), from, OperationExpression.Operation.CAT);
-                    }
-                    architecture.connections.add(new Connection(from, wire));
-                    i = 0;
-                    continue;
-                }
-                i++;
+    private static Lowering resolveIndexedAssignment(Architecture architecture) {
+        NameAllocator names = new NameAllocator(architecture);
+        List<Signal> signals = new ArrayList<>(architecture.signals);
+        List<Connection> connections = new ArrayList<>(architecture.connections.size());
+        Map<String, List<Connection>> indexedAssignments = new LinkedHashMap<>();
+        for (Connection connection : architecture.connections) {
+            if (connection.to instanceof WidthExpression expr) {
+                Wire wire = (Wire) expr.source;
+                indexedAssignments.computeIfAbsent(wire.getName(), k -> new ArrayList<>()).add(connection);
+            } else {
+                connections.add(connection);
             }
         }
+        for (List<Connection> assignments : indexedAssignments.values()) {
+            Wire wire = (Wire) ((WidthExpression) assignments.getFirst().to).source;
+            String prefix = names.getUniquePrefix(wire.getName());
+            List<Signal> tempSignals = new ArrayList<>();
+            for (int j = 0; j < wire.width; j++) {
+                Signal signal = new Signal(prefix + j, 1, 0);
+                names.add(signal.name);
+                signals.add(signal);
+                tempSignals.add(signal);
+            }
+            replaceAllAssignments(connections, assignments, tempSignals);
+            Expression from = new SignalWire(1, tempSignals.getFirst());
+            for (int j = 1; j < tempSignals.size(); j++) {
+                from = new OperationExpression(j + 1, new SignalWire(1, tempSignals.get(j)), from, OperationExpression.Operation.CAT);
+            }
+            connections.add(new Connection(from, wire));
+        }
+        return new Lowering(signals, connections, names);
     }
 
     /**
-     * Replaces all assignments in the architecture to a given wire with temporary signals.
+     * Replaces the given indexed assignments to a wire with assignments to temporary signals.
      *
-     * @param architecture the {@link Architecture} to modify.
-     * @param to           the {@link Wire} to replace.
-     * @param tempSignals  the temporary {@link Signal} objects to use for replacement.
+     * @param connections the list the replacement connections are appended to.
+     * @param assignments the indexed assignments to a single wire, in source order.
+     * @param tempSignals the temporary {@link Signal} objects to use for replacement.
      */
-    private void replaceAllAssignments(Architecture architecture, Wire to, List<Signal> tempSignals) {
-        int i = 0;
-        while (i < architecture.connections.size()) {
-            Connection connection = architecture.connections.get(i);
-            if (connection.to instanceof WidthExpression expr) {
-                Wire wire = (Wire) expr.source;
-                if (wire.getName().equals(to.getName())) {
-                    architecture.connections.remove(i);
-                    if(expr.width==1){
-                        architecture.connections.add(new Connection(connection.from, new SignalWire(1, tempSignals.get(expr.offset))));
-                    }else{
-                        for(int j=0;j<expr.width;j++){
-                            Expression newTo =new WidthExpression(1,connection.from,j);
-                            architecture.connections.add(new Connection(newTo, new SignalWire(1, tempSignals.get(j+expr.offset))));
-                        }
-                    }
-
-                    continue;
+    private static void replaceAllAssignments(List<Connection> connections, List<Connection> assignments, List<Signal> tempSignals) {
+        for (Connection connection : assignments) {
+            WidthExpression expr = (WidthExpression) connection.to;
+            if (expr.width == 1) {
+                connections.add(new Connection(connection.from, new SignalWire(1, tempSignals.get(expr.offset))));
+            } else {
+                for (int j = 0; j < expr.width; j++) {
+                    Expression newTo = new WidthExpression(1, connection.from, j);
+                    connections.add(new Connection(newTo, new SignalWire(1, tempSignals.get(j + expr.offset))));
                 }
             }
-            i++;
         }
     }
 
     /**
-     * Generates a unique prefix for a signal or wire within the given architecture.
-     *
-     * @param architecture the {@link Architecture} to check for uniqueness.
-     * @param prefix       the base prefix to modify.
-     * @return a unique prefix string.
+     * The state of generating a single module: the buffer it is written to, the indentation depth and the
+     * nodes emitted so far. Each module is generated by its own instance, so modules can be generated in parallel.
      */
-    private String getUniquePrefix(Architecture architecture, String prefix) {
-        do {
-            prefix = "_" + prefix;
-        } while (!checkIfPrefixIsUnique(architecture, prefix));
-        return prefix;
-    }
+    private static class ModuleGenerator {
+        final StringBuilder out = new StringBuilder();
+        int depth = 1;
+        NameAllocator names;
+        SharedExpressions shared;
+        Map<Integer, String> nodes = new HashMap<>();
+        Map<Integer, String> replications = new HashMap<>();
 
-    /**
-     * Checks whether a given prefix for a signal or wire is unique within the architecture.
-     *
-     * @param architecture the {@link Architecture} to check.
-     * @param prefix       the prefix to check.
-     * @return {@code true} if the prefix is unique; {@code false} otherwise.
-     */
-    private boolean checkIfPrefixIsUnique(Architecture architecture, String prefix) {
-        for (Port port : architecture.entity.ports) {
-            if (port.name.startsWith(prefix)) {
-                return false;
+        /**
+         * Generates the FIRRTL representation for a specific {@link Entity}.
+         * An entity without architecture, such as an entity of a {@link WorkLibrary}, becomes an external module.
+         *
+         * @param entity   the entity to be translated into FIRRTL.
+         * @param lowering the lowered signals and connections of its architecture, or {@code null} if it has none.
+         */
+        void generateEntity(Entity entity, Lowering lowering) {
+            Architecture architecture = entity.architecture;
+            append((architecture == null ? "extmodule " : "module ") + entity.name + " :");
+            depth++;
+            for (Port port : entity.ports) {
+                if (port.direction == Port.Direction.IN) {
+                    append("input " + port.name + " : UInt<" + port.length + ">");
+                } else if (port.direction == Port.Direction.OUT) {
+                    append("output " + port.name + " : UInt<" + port.length + ">");
+                }
+            }
+            if (architecture == null) {
+                depth--;
+                return;
             }
+            names = lowering.names;
+            out.append('\n');
+
+            for (Signal signal : lowering.signals) {
+                append("wire " + signal.name + " : UInt<" + signal.length + ">");
+            }
+            out.append('\n');
+
+            for (Instance instance : architecture.instances) {
+                append("inst " + instance.name + " of " + instance.component.name);
+            }
+            out.append('\n');
+
+            shared = new SharedExpressions(lowering.connections);
+            for (Connection connection : lowering.connections) {
+                appendNodes(connection.to);
+                appendNodes(connection.from);
+                indent();
+                serializeExpression(connection.to);
+                out.append("<=");
+                serializeExpression(connection.from);
+                out.append('\n');
+            }
+
+            depth--;
         }
-        for (Instance instance : architecture.instances) {
-            if (instance.name.startsWith(prefix)) {
-                return false;
+
+        /**
+         * Serializes a given {@link Expression} into its FIRRTL representation by writing it
+         * directly to the output, without building intermediate strings for subexpressions.
+         * Shared subexpressions and replications must have been prepared by {@link #appendNodes(Expression)}.
+         * The tree is walked with an explicit stack of subexpressions and the text following them,
+         * since reduction chains can be thousands of nodes deep.
+         *
+         * @param expression the expression to be serialized.
+         */
+        private void serializeExpression(Expression expression) {
+            ArrayDeque<Object> pending = new ArrayDeque<>();
+            if (expression != null) {
+                pending.push(expression);
+            }
+            while (!pending.isEmpty()) {
+                Object next = pending.pop();
+                if (next instanceof String text) {
+                    out.append(text);
+                    continue;
+                }
+                if (!(next instanceof Wire)) {
+                    String node = nodes.get(shared.getId((Expression) next));
+                    if (node != null) {
+                        out.append(node);
+                        continue;
+                    }
+                }
+                switch (next) {
+                    case NegationExpression expr -> {
+                        out.append("not(");
+                        pending.push(")");
+                        push(pending, expr.expression);
+                    }
+                    case OperationExpression expr -> {
+                        OperationExpression.Operation op = expr.operation;
+                        boolean negate = op == OperationExpression.Operation.NOR
+                                || op == OperationExpression.Operation.NAND
+                                || op == OperationExpression.Operation.XNOR;
+                        if (negate) {
+                            out.append("not(");
+                        }
+                        switch (op) {
+                            case OR, NOR -> out.append("or(");
+                            case AND, NAND -> out.append("and(");
+                            case XOR, XNOR -> out.append("xor(");
+                            case CAT -> out.append("cat(");
+                        }
+                        pending.push(negate ? "))" : ")");
+                        push(pending, expr.right);
+                        pending.push(",");
+                        push(pending, expr.left);
+                    }
+                    case WidthExpression expr -> {
+                        if (expr.width <= expr.source.width) {
+                            out.append("bits(");
+                            pending.push("," + (expr.offset + expr.width - 1) + "," + expr.offset + ")");
+                            push(pending, expr.source);
+                        } else {
+                            String replication = replications.get(shared.getId(expr));
+                            if (replication != null) {
+                                out.append(replication);
+                            }
+                        }
+                    }
+                    case PortWire wire -> out.append(wire.port.name);
+                    case SignalWire wire -> out.append(wire.signal.name);
+                    case InstancePortWire wire -> {
+                        out.append(wire.instance.name);
+                        out.append('.');
+                        out.append(wire.port.name);
+                    }
+                    case ImmediateWire wire -> {
+                        out.append("UInt<");
+                        out.append(wire.width);
+                        out.append(">(\"b");
+                        for (int i = 0; i < wire.width; i++) {
+                            out.append(wire.value[i] ? '1' : '0');
+                        }
+                        out.append("\")");
+                    }
+                    default -> {
+                    }
+                }
             }
         }
-        for (Signal signal : architecture.signals) {
-            if (signal.name.startsWith(prefix)) {
-                return false;
+
+        /**
+         * Appends the FIRRTL nodes needed by the given expression before the connection using it is written:
+         * the intermediate nodes of replications and one node for each shared subexpression
+         * (see {@link SharedExpressions}). Nodes already emitted in the current module are reused.
+         * The subexpressions are prepared before the expressions using them, in a post-order walk with an explicit stack.
+         *
+         * @param expression the expression to be prepared.
+         */
+        private void appendNodes(Expression expression) {
+            ArrayDeque<Object> pending = new ArrayDeque<>();
+            if (expression != null) {
+                pending.push(expression);
+            }
+            while (!pending.isEmpty()) {
+                Object next = pending.pop();
+                if (next instanceof Prepared(Expression prepared)) {
+                    int id = shared.getId(prepared);
+                    if (prepared instanceof WidthExpression expr && expr.width > expr.source.width && expr.width > 1
+                            && !replications.containsKey(id)) {
+                        replications.put(id, serializeReplication(expr.source, expr.width));
+                    }
+                    if (shared.isShared(prepared)) {
+                        nodes.put(id, appendNode(prepared));
+                    }
+                    continue;
+                }
+                if (next instanceof Wire || nodes.containsKey(shared.getId((Expression) next))) {
+                    continue;
+                }
+                // the children are prepared first, the left one before the right one
+                pending.push(new Prepared((Expression) next));
+                switch (next) {
+                    case NegationExpression expr -> push(pending, expr.expression);
+                    case OperationExpression expr -> {
+                        push(pending, expr.right);
+                        push(pending, expr.left);
+                    }
+                    case WidthExpression expr -> push(pending, expr.source);
+                    default -> {
+                    }
+                }
             }
         }
-        return true;
-    }
 
-    /**
-     * Appends a line to the generated FIRRTL program, respecting the current indentation depth.
-     *
-     * @param line the line to append.
-     */
-    private void append(String line) {
-        program.append("  ".repeat(depth));
-        program.append(line).append("\n");
+        private static void push(ArrayDeque<Object> pending, Expression expression) {
+            if (expression != null) {
+                pending.push(expression);
+            }
+        }
+
+        /**
+         * Serializes the replication of a 1-bit source to the given width.
+         * <p>
+         * The source is evaluated only once and doubled through intermediate FIRRTL nodes
+         * ({@code x2 = cat(x, x)}, {@code x4 = cat(x2, x2)}, ...), so the emitted text grows
+         * with the logarithm of the width instead of linearly.
+         * </p>
+         *
+         * @param source the source expression.
+         * @param width  the width of the replication, larger than 1.
+         * @return a string containing the FIRRTL representation of the replication.
+         */
+        private String serializeReplication(Expression source, int width) {
+            String power = switch (source) {
+                case PortWire wire -> wire.port.name;
+                case SignalWire wire -> wire.signal.name;
+                case InstancePortWire wire -> wire.instance.name + "." + wire.port.name;
+                default -> nodes.containsKey(shared.getId(source)) ? nodes.get(shared.getId(source)) : appendNode(source);
+            };
+            boolean isNamed = true;
+            String result = null;
+            while (true) {
+                boolean take = (width & 1) != 0;
+                width >>>= 1;
+                if (width == 0) {
+                    return result == null ? power : "cat(" + power + ", " + result + ")";
+                }
+                if (!isNamed) {
+                    power = appendNode(power);
+                    isNamed = true;
+                }
+                if (take) {
+                    result = result == null ? power : "cat(" + power + ", " + result + ")";
+                }
+                power = "cat(" + power + ", " + power + ")";
+                isNamed = false;
+            }
+        }
+
+        /**
+         * Appends a FIRRTL node holding the given serialized expression to the current module.
+         *
+         * @param expression the serialized expression.
+         * @return the name of the node.
+         */
+        private String appendNode(String expression) {
+            String name = names.getTemporaryName();
+            append("node " + name + " = " + expression);
+            return name;
+        }
+
+        /**
+         * Appends a FIRRTL node holding the given expression to the current module.
+         *
+         * @param expression the expression, whose replications must already be prepared.
+         * @return the name of the node.
+         */
+        private String appendNode(Expression expression) {
+            String name = names.getTemporaryName();
+            indent();
+            out.append("node ");
+            out.append(name);
+            out.append(" = ");
+            serializeExpression(expression);
+            out.append('\n');
+            return name;
+        }
+
+        /**
+         * Appends a line to the generated FIRRTL program, respecting the current indentation depth.
+         *
+         * @param line the line to append.
+         */
+        private void append(String line) {
+            indent();
+            out.append(line);
+            out.append('\n');
+        }
+
+        /**
+         * Writes the indentation of the current depth.
+         */
+        private void indent() {
+            for (int n = depth * 2; n > 0; n -= INDENTATION.length()) {
+                out.append(INDENTATION, 0, Math.min(n, INDENTATION.length()));
+            }
+        }
     }
 }
@@ -1,10 +1,21 @@
 package MiniVHDL;
 
 import MiniVHDL.Circuit.Circuit;
+import MiniVHDL.Circuit.Flattener;
+import MiniVHDL.Circuit.WorkLibrary;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.PrintWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * The main entry point for the MiniVHDL to FIRRTL Compiler.
@@ -15,48 +26,316 @@ public class Main {
      * The main method for executing the MiniVHDL compiler.
      *
      * <p>
-     * The program reads a VHDL file, parses its contents, and generates an equivalent FIRRTL
-     * representation of the circuit described in the file. If parsing succeeds without errors,
-     * the generated FIRRTL program is written to an output file in the same directory as the input file.
+     * The program reads the given VHDL files, parses their contents in parallel, links the entities
+     * of all files, and generates an equivalent FIRRTL representation of the circuit below the top-level
+     * entity. If parsing succeeds without errors, the generated FIRRTL program is streamed to an output file
+     * in the same directory as the first input file, inside the first input directory, or next to the first file list.
+     * An input of <code>-</code> is read from the standard input, and with <code>--stdout</code> the FIRRTL program is
+     * written to the standard output while all messages go to the standard error, so the compiler can sit in a pipe.
+     * </p>
+     * <p>
+     * With <code>--daemon</code> as first argument the program instead runs a {@link Daemon} that keeps the JVM warm
+     * and serves compile requests, and with <code>--client</code> it forwards the remaining arguments to that daemon.
+     * With <code>--batch</code> it compiles the jobs of a manifest (see {@link Batch}), and with
+     * <code>--make-library &lt;file&gt;</code> it writes the entities of the given sources to a {@link WorkLibrary}.
+     * With <code>--benchmark-generation &lt;operands&gt; &lt;assignments&gt;</code> it times the FIRRTL generation of a
+     * design with long operator chains (see {@link GenerationBenchmark}).
      * </p>
      *
-     * @param args the command-line arguments. The program expects two arguments:
+     * @param args the command-line arguments. The program expects optional options followed by at least two arguments:
      *             <ul>
-     *                 <li><code>args[0]</code>: The name of the input VHDL file to be compiled.</li>
-     *                 <li><code>args[1]</code>: The name of the top-level module for the FIRRTL file.</li>
+     *                 <li><code>--cache &lt;directory&gt;</code>: Reuse the checks and modules of unchanged design units
+     *                 stored in the directory by earlier runs (see {@link ModuleCache}).</li>
+     *                 <li><code>--library &lt;file&gt;</code>: Look up entities that are not declared in the sources
+     *                 in the given work library.</li>
+     *                 <li><code>--output &lt;file&gt;</code>: Write the FIRRTL program to the given file.</li>
+     *                 <li><code>--stdout</code>: Write the FIRRTL program to the standard output.</li>
+     *                 <li><code>--flatten</code>: Inline all instances into a single module for the top-level entity
+     *                 before generating FIRRTL or simulating (see {@link Flattener}).</li>
+     *                 <li><code>--simulate &lt;file&gt;</code>: Instead of generating FIRRTL, simulate the top-level
+     *                 entity on the vectors of the given file and report the outputs that differ (see {@link Simulation}).</li>
+     *                 <li><code>--simulate-random &lt;n&gt;</code>: Instead of generating FIRRTL, simulate the top-level
+     *                 entity on <code>n</code> random vectors and report the throughput and a checksum of the outputs.</li>
+     *                 <li><code>--simulate-scaling &lt;n&gt;</code>: Instead of generating FIRRTL, simulate the top-level
+     *                 entity on <code>n</code> random vectors with 1, 2, 4, 8 and 16 threads and report the throughput of each.</li>
+     *                 <li><code>--simulator &lt;interpreted|compiled|event-driven|parallel&gt;</code>: Simulate by interpreting
+     *                 the gates (the default), by generating a JVM class for the design, by evaluating only the gates whose inputs
+     *                 changed, or by evaluating the wide levels of the design on all cores (see {@link Simulator}).</li>
+     *                 <li><code>--max-errors &lt;n&gt;</code>: Stop parsing a file after <code>n</code> errors and report
+     *                 at most <code>n</code> errors in total.</li>
+     *                 <li><code>--diagnostics-json &lt;file&gt;</code>: Additionally write all messages to the given file
+     *                 as JSON lines (see {@link Diagnostic}).</li>
+     *                 <li><code>args[0..n-2]</code>: The input VHDL files, directories containing <code>.vhd</code>
+     *                 files, <code>@filelist</code> files naming one input per line, or <code>-</code> for the
+     *                 standard input.</li>
+     *                 <li><code>args[n-1]</code>: The name of the top-level module for the FIRRTL file.</li>
      *             </ul>
      */
     public static void main(String[] args) {
-        System.out.println("MiniVHDL to FIRRTL Compiler");
+        List<String> arguments = Arrays.asList(args);
+        if (!arguments.isEmpty() && arguments.getFirst().equals("--daemon")) {
+            System.exit(Daemon.serve(arguments.subList(1, arguments.size())));
+        }
+        if (!arguments.isEmpty() && arguments.getFirst().equals("--client")) {
+            System.exit(Daemon.forward(arguments.subList(1, arguments.size())));
+        }
+        System.exit(compile(Path.of(""), arguments, System.out, System.err));
+    }
 
-        if (args.length < 2) {
-            System.err.println("Error: Missing required arguments. Usage: java Main <filename> <topLevelModule>");
-            System.exit(1);
+    /**
+     * Runs a single compilation. Everything the compilation prints goes to the given streams and all
+     * relative paths are resolved against the given directory, so several compilations can run
+     * side by side in one process.
+     *
+     * @param directory the working directory of the compilation.
+     * @param args      the command-line arguments as described at {@link #main(String[])}.
+     * @param out       the stream for the progress and error messages, or for the FIRRTL program with <code>--stdout</code>.
+     * @param err       the stream for usage and I/O errors, and for all messages with <code>--stdout</code>.
+     * @return the exit code of the compilation: 0 on success, or 1 if the arguments are invalid, the sources
+     * have errors or the output cannot be written.
+     */
+    public static int compile(Path directory, List<String> args, PrintStream out, PrintStream err) {
+        // with --stdout the standard output carries nothing but the FIRRTL program
+        boolean toStdout = args.contains("--stdout");
+        PrintStream log = toStdout ? err : out;
+        log.println("MiniVHDL to FIRRTL Compiler");
+
+        if (!args.isEmpty() && args.getFirst().equals("--batch")) {
+            return Batch.run(directory, args.subList(1, args.size()), out, err);
+        }
+        if (!args.isEmpty() && args.getFirst().equals("--make-library")) {
+            return makeLibrary(directory, args.subList(1, args.size()), out, err);
+        }
+        if (!args.isEmpty() && args.getFirst().equals("--benchmark-generation")) {
+            return GenerationBenchmark.run(directory, args.subList(1, args.size()), out, err);
         }
 
-        String filename = args[0];
-        String topLevelModule = args[1];
-        Scanner scanner = new Scanner(filename);
-        Parser parser = new Parser(scanner);
-        parser.Parse();
-        Circuit circuit = parser.circuit;
+        int first = 0;
+        String cacheDirectory = null;
+        String libraryFile = null;
+        String outputFile = null;
+        int maxErrors = Integer.MAX_VALUE;
+        String jsonFile = null;
+        String vectorFile = null;
+        long randomVectors = 0;
+        long scalingVectors = 0;
+        boolean flatten = false;
+        Simulator.Mode simulatorMode = Simulator.Mode.INTERPRETED;
+        while (first < args.size() - 1 && args.get(first).startsWith("--")) {
+            switch (args.get(first)) {
+                case "--cache" -> cacheDirectory = args.get(++first);
+                case "--library" -> libraryFile = args.get(++first);
+                case "--output" -> outputFile = args.get(++first);
+                case "--stdout" -> {
+                    // already seen above
+                }
+                case "--flatten" -> flatten = true;
+                case "--max-errors" -> {
+                    try {
+                        maxErrors = Integer.parseInt(args.get(++first));
+                    } catch (NumberFormatException e) {
+                        maxErrors = 0;
+                    }
+                    if (maxErrors < 1) {
+                        err.printf("Error: Invalid error limit %s%n", args.get(first));
+                        return 1;
+                    }
+                }
+                case "--diagnostics-json" -> jsonFile = args.get(++first);
+                case "--simulate" -> vectorFile = args.get(++first);
+                case "--simulate-random" -> {
+                    try {
+                        randomVectors = Long.parseLong(args.get(++first));
+                    } catch (NumberFormatException e) {
+                        randomVectors = 0;
+                    }
+                    if (randomVectors < 1) {
+                        err.printf("Error: Invalid number of vectors %s%n", args.get(first));
+                        return 1;
+                    }
+                }
+                case "--simulate-scaling" -> {
+                    try {
+                        scalingVectors = Long.parseLong(args.get(++first));
+                    } catch (NumberFormatException e) {
+                        scalingVectors = 0;
+                    }
+                    if (scalingVectors < 1) {
+                        err.printf("Error: Invalid number of vectors %s%n", args.get(first));
+                        return 1;
+                    }
+                }
+                case "--simulator" -> {
+                    switch (args.get(++first)) {
+                        case "compiled" -> simulatorMode = Simulator.Mode.COMPILED;
+                        case "interpreted" -> simulatorMode = Simulator.Mode.INTERPRETED;
+                        case "event-driven" -> simulatorMode = Simulator.Mode.EVENT_DRIVEN;
+                        case "parallel" -> simulatorMode = Simulator.Mode.PARALLEL;
+                        default -> {
+                            err.printf("Error: Invalid simulator %s%n", args.get(first));
+                            return 1;
+                        }
+                    }
+                }
+                default -> {
+                    err.printf("Error: Unknown option %s%n", args.get(first));
+                    return 1;
+                }
+            }
+            first++;
+        }
+
+        if (args.size() - first < 2) {
+            err.println("Error: Missing required arguments. Usage: java Main [--cache <directory>] [--library <file>] [--output <file> | --stdout] [--flatten] [--simulate <file> | --simulate-random <n> | --simulate-scaling <n>] [--simulator <interpreted|compiled|event-driven|parallel>] [--max-errors <n>] [--diagnostics-json <file>] <file|directory|@filelist|->... <topLevelModule>");
+            return 1;
+        }
+        if (toStdout && outputFile != null) {
+            err.println("Error: --output and --stdout cannot be combined");
+            return 1;
+        }
+
+        List<String> inputs = args.subList(first, args.size() - 1);
+        String topLevelModule = args.getLast();
+        List<String> files;
+        try {
+            files = Compilation.collectSources(directory, inputs);
+        } catch (IOException e) {
+            err.printf("Error: Cannot read input %s%n", e.getMessage());
+            return 1;
+        }
+        if (files.isEmpty()) {
+            err.println("Error: No input files");
+            return 1;
+        }
+        if (files.indexOf(Compilation.STDIN) != files.lastIndexOf(Compilation.STDIN)) {
+            err.println("Error: The standard input can only be read once");
+            return 1;
+        }
+        Compilation compilation = new Compilation(directory, files);
+        if (cacheDirectory != null) {
+            try {
+                compilation.cache = new ModuleCache(directory.resolve(cacheDirectory));
+            } catch (IOException e) {
+                err.printf("Error: Cannot create cache directory %s%n", cacheDirectory);
+                return 1;
+            }
+        }
+        if (libraryFile != null) {
+            try {
+                compilation.workLibrary = WorkLibrary.open(directory.resolve(libraryFile));
+            } catch (IOException e) {
+                err.printf("Error: Cannot read work library %s%n", e.getMessage());
+                return 1;
+            }
+        }
+        compilation.maxErrors = maxErrors;
+        if (jsonFile != null) {
+            try (PrintStream json = new PrintStream(new BufferedOutputStream(Files.newOutputStream(directory.resolve(jsonFile))), false, StandardCharsets.UTF_8)) {
+                compilation.jsonStream = json;
+                compilation.compile(log);
+            } catch (IOException e) {
+                err.printf("Error: Cannot write diagnostics to %s%n", jsonFile);
+                return 1;
+            }
+        } else {
+            compilation.compile(log);
+        }
+        Circuit circuit = compilation.circuit;
 
-        System.out.printf("%d %s detected%n", parser.errors.count, parser.errors.count == 1 ? " error" : " errors");
+        log.printf("%d %s detected%n", compilation.errorCount, compilation.errorCount == 1 ? " error" : " errors");
 
-        if (parser.errors.count == 0) {
+        if (compilation.errorCount == 0) {
+            if (circuit.getEntityByName(topLevelModule.toLowerCase()) == null) {
+                err.printf("Error: Top-level entity %s does not exist%n", topLevelModule);
+                return 1;
+            }
+            if (flatten) {
+                try {
+                    circuit = Flattener.flatten(circuit, topLevelModule);
+                } catch (IllegalArgumentException e) {
+                    err.printf("Error: %s%n", e.getMessage());
+                    return 1;
+                }
+            }
+            if (vectorFile != null) {
+                return Simulation.runVectors(circuit, topLevelModule, directory.resolve(vectorFile), simulatorMode, log, err);
+            }
+            if (randomVectors > 0) {
+                return Simulation.runRandom(circuit, topLevelModule, randomVectors, simulatorMode, log, err);
+            }
+            if (scalingVectors > 0) {
+                return Simulation.runScaling(circuit, topLevelModule, scalingVectors, log, err);
+            }
             Generator generator = new Generator();
-            String firrtlProgram = generator.generate(topLevelModule, circuit);
-            try (PrintWriter pw = new PrintWriter(getOutputFile(filename, topLevelModule))) {
-                pw.println(firrtlProgram);
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
+            generator.cache = compilation.cache;
+            if (toStdout) {
+                // the writer is flushed but not closed, the standard output belongs to the caller
+                Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+                try {
+                    generator.generate(topLevelModule, circuit, writer);
+                    writer.write(System.lineSeparator());
+                    writer.flush();
+                } catch (IOException e) {
+                    e.printStackTrace(err);
+                    return 1;
+                }
+                return 0;
+            }
+            Path output = directory.resolve(outputFile != null ? outputFile : getOutputFile(directory, inputs.getFirst(), topLevelModule));
+            try (Writer writer = Files.newBufferedWriter(output)) {
+                generator.generate(topLevelModule, circuit, writer);
+                writer.write(System.lineSeparator());
+            } catch (IOException e) {
+                e.printStackTrace(err);
+                return 1;
             }
         }
+        return compilation.errorCount == 0 ? 0 : 1;
     }
 
-    private static String getOutputFile(String inputFile, String topLevelModule) {
-        File input = new File(inputFile);
-        String parentDir = input.getParent();
+    /**
+     * Compiles the given sources and writes all their entities to a work library.
+     *
+     * @param directory the working directory of the compilation.
+     * @param args      the library file followed by the files, directories and file lists to compile.
+     * @param out       the stream for the progress and error messages.
+     * @param err       the stream for usage and I/O errors.
+     * @return 0 if the library was written, 1 otherwise.
+     */
+    private static int makeLibrary(Path directory, List<String> args, PrintStream out, PrintStream err) {
+        if (args.size() < 2) {
+            err.println("Error: Missing required arguments. Usage: java Main --make-library <library> <file|directory|@filelist>...");
+            return 1;
+        }
+        Path library = directory.resolve(args.getFirst());
+        Compilation compilation;
+        try {
+            compilation = new Compilation(directory, Compilation.collectSources(directory, args.subList(1, args.size())));
+        } catch (IOException e) {
+            err.printf("Error: Cannot read input %s%n", e.getMessage());
+            return 1;
+        }
+        compilation.compile(out);
+        out.printf("%d %s detected%n", compilation.errorCount, compilation.errorCount == 1 ? " error" : " errors");
+        if (compilation.errorCount > 0) {
+            return 1;
+        }
+        try {
+            WorkLibrary.write(library, compilation.circuit.entities);
+        } catch (IOException e) {
+            err.printf("Error: Cannot write work library %s%n", library);
+            return 1;
+        }
+        out.printf("%d entities written to %s%n", compilation.circuit.entities.size(), args.getFirst());
+        return 0;
+    }
+
+    private static String getOutputFile(Path directory, String input, String topLevelModule) {
+        File inputFile = new File(input.startsWith("@") ? input.substring(1) : input);
+        if (directory.resolve(inputFile.getPath()).toFile().isDirectory()) {
+            return new File(inputFile, topLevelModule + ".fir").getPath();
+        }
+        String parentDir = inputFile.getParent();
         return (parentDir != null ? parentDir + File.separator : "") + topLevelModule + ".fir";
     }
-}
\ No newline at end of file
+}
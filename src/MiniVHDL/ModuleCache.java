@@ -0,0 +1,164 @@
+package MiniVHDL;
+
+import MiniVHDL.Circuit.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The {@code ModuleCache} stores the results of compiling design units in a directory, so unchanged
+ * units are not checked and generated again on the next run.
+ * <p>
+ * A design unit is an {@link Entity} together with one of its {@link Architecture}s. Its key is a digest of
+ * the entity text, the architecture text and the port signatures of all entities instantiated by the
+ * architecture, so changing the ports of a referenced entity invalidates the unit as well.
+ * For each key the cache holds the undriven-wire report and the generated FIRRTL module.
+ * </p>
+ * <p>
+ * Entries are written atomically and can be shared by concurrent compilations. A cache directory that
+ * cannot be read or written behaves like an empty cache.
+ * </p>
+ */
+class ModuleCache {
+    // change whenever the generated FIRRTL or the cached checks change, so old entries are not reused
+    private static final String VERSION = "MiniVHDL-1";
+
+    private final Path directory;
+
+    /**
+     * Creates a cache stored in the given directory, creating the directory if necessary.
+     *
+     * @param directory the cache directory.
+     * @throws IOException if the directory cannot be created.
+     */
+    public ModuleCache(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+    }
+
+    /**
+     * Computes the hex encoded SHA-256 digest of a text.
+     *
+     * @param text the text to hash.
+     * @return the digest of the UTF-8 encoding of the text.
+     */
+    public static String digest(String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(text.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Computes the key of the design unit formed by the given architecture and its entity.
+     *
+     * @param architecture the architecture of the design unit.
+     * @param circuit      the linked circuit used to look up the instantiated entities.
+     * @return the key of the design unit, or {@code null} if the unit cannot be cached.
+     */
+    public String getKey(Architecture architecture, Circuit circuit) {
+        if (architecture == null || architecture.entity == null
+                || architecture.sourceHash == null || architecture.entity.sourceHash == null) {
+            return null;
+        }
+        Map<String, String> signatures = new TreeMap<>();
+        for (Instance instance : architecture.instances) {
+            String name = instance.component.name;
+            if (!signatures.containsKey(name)) {
+                Entity entity = circuit.getEntityByName(name);
+                signatures.put(name, entity == null ? "?" : getSignature(entity));
+            }
+        }
+        StringBuilder key = new StringBuilder(VERSION).append('\n')
+                .append(architecture.entity.sourceHash).append('\n')
+                .append(architecture.sourceHash).append('\n');
+        signatures.forEach((name, signature) -> key.append(name).append('(').append(signature).append(")\n"));
+        return digest(key.toString());
+    }
+
+    /**
+     * Returns the undriven-wire report of the given architecture, computing and storing it on a miss.
+     *
+     * @param architecture the architecture to check.
+     * @param circuit      the linked circuit used to compute the key.
+     * @return the report of {@link Architecture#getUndrivenWires()}.
+     */
+    public String getUndrivenWires(Architecture architecture, Circuit circuit) {
+        String key = getKey(architecture, circuit);
+        String undriven = key == null ? null : read(key, ".chk");
+        if (undriven == null) {
+            undriven = architecture.getUndrivenWires();
+            if (key != null) {
+                write(key, ".chk", undriven);
+            }
+        }
+        return undriven;
+    }
+
+    /**
+     * Returns the generated FIRRTL module of a design unit.
+     *
+     * @param key the key of the design unit.
+     * @return the module text, or {@code null} if it is not cached.
+     */
+    public String getModule(String key) {
+        return read(key, ".fir");
+    }
+
+    /**
+     * Stores the generated FIRRTL module of a design unit.
+     *
+     * @param key    the key of the design unit.
+     * @param module the module text.
+     */
+    public void putModule(String key, String module) {
+        write(key, ".fir", module);
+    }
+
+    private static String getSignature(Entity entity) {
+        StringBuilder signature = new StringBuilder();
+        for (Port port : entity.ports) {
+            signature.append(port.name).append(' ').append(port.direction).append(' ')
+                    .append(port.length).append(' ').append(port.offset).append(';');
+        }
+        return signature.toString();
+    }
+
+    // entries are spread over subdirectories named by the first two digits of the key
+    private Path getPath(String key, String suffix) {
+        return directory.resolve(key.substring(0, 2)).resolve(key.substring(2) + suffix);
+    }
+
+    private String read(String key, String suffix) {
+        try {
+            return Files.readString(getPath(key, suffix));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void write(String key, String suffix, String text) {
+        Path path = getPath(key, suffix);
+        try {
+            Files.createDirectories(path.getParent());
+            Path temp = Files.createTempFile(path.getParent(), key, ".tmp");
+            try {
+                Files.writeString(temp, text);
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            // the entry is simply computed again on the next run
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package MiniVHDL;
+
+import MiniVHDL.Circuit.*;
+
+import java.util.TreeSet;
+
+/**
+ * The {@code NameAllocator} keeps a sorted index of every name used inside an
+ * {@link Architecture} (entity ports, instances and signals) and hands out
+ * prefixes for temporaries that cannot collide with any of them.
+ * <p>
+ * A prefix is free if no existing name starts with it. Since names sharing a prefix
+ * are adjacent in the sorted index, this is answered by a single ceiling lookup.
+ * </p>
+ */
+class NameAllocator {
+    private final TreeSet<String> names = new TreeSet<>();
+    private String temporaryPrefix;
+    private int temporaryCount;
+
+    /**
+     * Creates an allocator holding all names currently declared in the given architecture.
+     *
+     * @param architecture the {@link Architecture} whose names are reserved.
+     */
+    public NameAllocator(Architecture architecture) {
+        for (Port port : architecture.entity.ports) {
+            names.add(port.name);
+        }
+        for (Instance instance : architecture.instances) {
+            names.add(instance.name);
+        }
+        for (Signal signal : architecture.signals) {
+            names.add(signal.name);
+        }
+    }
+
+    /**
+     * Reserves a name so that later prefixes are not allowed to collide with it.
+     *
+     * @param name the name to reserve.
+     */
+    public void add(String name) {
+        names.add(name);
+    }
+
+    /**
+     * Checks whether no reserved name starts with the given prefix.
+     *
+     * @param prefix the prefix to check.
+     * @return {@code true} if the prefix is unique; {@code false} otherwise.
+     */
+    public boolean isPrefixFree(String prefix) {
+        String next = names.ceiling(prefix);
+        return next == null || !next.startsWith(prefix);
+    }
+
+    /**
+     * Generates a unique prefix by prepending underscores to the given base name
+     * until no reserved name starts with it.
+     *
+     * @param prefix the base prefix to modify.
+     * @return a unique prefix string.
+     */
+    public String getUniquePrefix(String prefix) {
+        do {
+            prefix = "_" + prefix;
+        } while (!isPrefixFree(prefix));
+        return prefix;
+    }
+
+    /**
+     * Returns a new, reserved name for a single temporary (e.g. a FIRRTL {@code node}).
+     * All such names share one prefix that is chosen on first use.
+     *
+     * @return a name not used by any other wire of the architecture.
+     */
+    public String getTemporaryName() {
+        if (temporaryPrefix == null) {
+            temporaryPrefix = getUniquePrefix("t");
+        }
+        String name;
+        do {
+            name = temporaryPrefix + temporaryCount++;
+        } while (names.contains(name));
+        names.add(name);
+        return name;
+    }
+}
@@ -0,0 +1,394 @@
+package MiniVHDL;
+
+import MiniVHDL.Circuit.*;
+import MiniVHDL.Circuit.Expression.*;
+import MiniVHDL.Circuit.Wire.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The {@code Netlist} elaborates the hierarchy below a top-level entity of a {@link Circuit} into
+ * single-bit gates over numbered slots, the form evaluated by the {@link Simulator}.
+ * <p>
+ * Every bit of every port, signal and instance port in the hierarchy starts out as a slot of its own.
+ * Wires, bit selections, concatenations, replications and immediates only rearrange bits, so they are
+ * resolved to slots while elaborating and cost nothing at run time, and a connection makes each driven
+ * slot an alias of the slot driving it. What remains are the logic operations, one gate per bit.
+ * </p>
+ * <p>
+ * The gates are levelized, so every gate comes after the gates it reads, and equal gates are merged.
+ * Finally the slots are renumbered densely: the constants, the bits of the top-level inputs and the
+ * outputs of the gates in evaluation order. Slots that are never driven read as the constant 0.
+ * </p>
+ */
+class Netlist {
+    public static final int ZERO = 0;
+    public static final int ONE = 1;
+
+    public static final int AND = 0;
+    public static final int OR = 1;
+    public static final int XOR = 2;
+    public static final int NAND = 3;
+    public static final int NOR = 4;
+    public static final int XNOR = 5;
+    public static final int NOT = 6;
+
+    public final Entity top;
+    public final Map<String, int[]> inputs = new LinkedHashMap<>();
+    public final Map<String, int[]> outputs = new LinkedHashMap<>();
+    public int slotCount;
+    public int gateCount;
+    public int[] ops;
+    public int[] lefts;
+    public int[] rights;
+    public int[] targets;
+    public int[] levels;
+    public int levelCount;
+
+    private final Circuit circuit;
+    private int[] alias = new int[1024];
+    private int slots = 2;
+    private int gates;
+    private int[] gateOps = new int[1024];
+    private int[] gateLefts = new int[1024];
+    private int[] gateRights = new int[1024];
+    private int[] gateTargets = new int[1024];
+
+    /**
+     * The slots of the ports, signals and instance ports of one instance of an architecture.
+     */
+    private record Scope(Map<Port, Integer> ports, Map<Signal, Integer> signals,
+                         Map<Instance, Map<String, Integer>> instancePorts) {
+    }
+
+    /**
+     * Elaborates the hierarchy below the given top-level entity.
+     *
+     * @param circuit      the linked circuit.
+     * @param topLevelName the name of the top-level entity.
+     * @throws IllegalArgumentException if the top-level entity does not exist, an entity of the hierarchy
+     *                                  has no architecture or instantiates itself, or the design has a combinational loop.
+     */
+    public Netlist(Circuit circuit, String topLevelName) {
+        this.circuit = circuit;
+        top = circuit.getEntityByName(topLevelName.toLowerCase());
+        if (top == null) {
+            throw new IllegalArgumentException("Top-level entity %s does not exist".formatted(topLevelName));
+        }
+        Arrays.fill(alias, -1);
+        Map<Port, Integer> ports = new IdentityHashMap<>();
+        for (Port port : top.ports) {
+            ports.put(port, allocate(port.length));
+        }
+        elaborate(top, ports, new HashSet<>());
+        schedule(top, ports);
+    }
+
+    private void elaborate(Entity entity, Map<Port, Integer> ports, Set<Entity> path) {
+        Architecture architecture = entity.architecture;
+        if (architecture == null) {
+            throw new IllegalArgumentException("Entity %s has no architecture".formatted(entity.name));
+        }
+        if (!path.add(entity)) {
+            throw new IllegalArgumentException("Entity %s instantiates itself".formatted(entity.name));
+        }
+        Map<Signal, Integer> signals = new IdentityHashMap<>();
+        for (Signal signal : architecture.signals) {
+            signals.put(signal, allocate(signal.length));
+        }
+        Map<Instance, Map<String, Integer>> instancePorts = new IdentityHashMap<>();
+        for (Instance instance : architecture.instances) {
+            Map<String, Integer> slotsByName = new HashMap<>();
+            for (Port port : instance.component.ports) {
+                slotsByName.put(port.name, allocate(port.length));
+            }
+            instancePorts.put(instance, slotsByName);
+        }
+        Scope scope = new Scope(ports, signals, instancePorts);
+
+        for (Connection connection : architecture.connections) {
+            if (isOpen(connection.from) || isOpen(connection.to)) {
+                continue;
+            }
+            int[] from = bits(connection.from, scope);
+            int[] to = bits(connection.to, scope);
+            for (int k = 0; k < to.length; k++) {
+                if (to[k] > ONE) {
+                    alias[to[k]] = k < from.length ? from[k] : ZERO;
+                }
+            }
+        }
+
+        for (Instance instance : architecture.instances) {
+            Entity child = circuit.getEntityByName(instance.component.name);
+            if (child == null) {
+                throw new IllegalArgumentException("There is no entity for component %s".formatted(instance.component.name));
+            }
+            Map<String, Integer> slotsByName = instancePorts.get(instance);
+            Map<Port, Integer> childPorts = new IdentityHashMap<>();
+            for (Port port : child.ports) {
+                Integer slot = slotsByName.get(port.name);
+                childPorts.put(port, slot != null ? slot : allocate(port.length));
+            }
+            elaborate(child, childPorts, path);
+        }
+        path.remove(entity);
+    }
+
+    // an OPEN port map leaves the port unconnected
+    private static boolean isOpen(Expression expression) {
+        return expression == null || expression instanceof PortWire wire && wire.port == null;
+    }
+
+    /**
+     * Returns the slots holding the bits of an expression, least significant bit first,
+     * creating the gates of its logic operations.
+     *
+     * @param expression the expression.
+     * @param scope      the slots of the instance the expression belongs to.
+     * @return the slots of the bits.
+     */
+    private int[] bits(Expression expression, Scope scope) {
+        return switch (expression) {
+            case PortWire wire -> range(scope.ports.get(wire.port), wire.port.length);
+            case SignalWire wire -> range(scope.signals.get(wire.signal), wire.signal.length);
+            case InstancePortWire wire -> range(scope.instancePorts.get(wire.instance).get(wire.port.name), wire.port.length);
+            case ImmediateWire wire -> {
+                // the value is written most significant bit first
+                int[] bits = new int[wire.value.length];
+                for (int k = 0; k < bits.length; k++) {
+                    bits[k] = wire.value[bits.length - 1 - k] ? ONE : ZERO;
+                }
+                yield bits;
+            }
+            case WidthExpression expr -> {
+                int[] source = bits(expr.source, scope);
+                int[] bits = new int[expr.width];
+                boolean replication = expr.width > source.length;
+                for (int k = 0; k < bits.length; k++) {
+                    if (replication) {
+                        bits[k] = source[k % source.length];
+                    } else {
+                        bits[k] = expr.offset + k < source.length ? source[expr.offset + k] : ZERO;
+                    }
+                }
+                yield bits;
+            }
+            case NegationExpression expr -> {
+                int[] operand = bits(expr.expression, scope);
+                int[] bits = new int[operand.length];
+                for (int k = 0; k < bits.length; k++) {
+                    bits[k] = gate(NOT, operand[k], ZERO);
+                }
+                yield bits;
+            }
+            case OperationExpression expr when expr.operation == OperationExpression.Operation.CAT -> {
+                // the left operand forms the most significant bits
+                int[] left = bits(expr.left, scope);
+                int[] right = bits(expr.right, scope);
+                int[] bits = Arrays.copyOf(right, right.length + left.length);
+                System.arraycopy(left, 0, bits, right.length, left.length);
+                yield bits;
+            }
+            case OperationExpression expr -> {
+                int op = switch (expr.operation) {
+                    case AND -> AND;
+                    case OR -> OR;
+                    case XOR -> XOR;
+                    case NAND -> NAND;
+                    case NOR -> NOR;
+                    case XNOR -> XNOR;
+                    case CAT -> throw new IllegalStateException();
+                };
+                int[] left = bits(expr.left, scope);
+                int[] right = bits(expr.right, scope);
+                int[] bits = new int[Math.max(left.length, right.length)];
+                for (int k = 0; k < bits.length; k++) {
+                    bits[k] = gate(op, k < left.length ? left[k] : ZERO, k < right.length ? right[k] : ZERO);
+                }
+                yield bits;
+            }
+            default -> throw new IllegalArgumentException("Cannot simulate expression " + expression);
+        };
+    }
+
+    private static int[] range(int first, int length) {
+        int[] bits = new int[length];
+        for (int k = 0; k < length; k++) {
+            bits[k] = first + k;
+        }
+        return bits;
+    }
+
+    private int allocate(int length) {
+        int first = slots;
+        slots += length;
+        if (slots > alias.length) {
+            int oldLength = alias.length;
+            alias = Arrays.copyOf(alias, Math.max(slots, oldLength * 2));
+            Arrays.fill(alias, oldLength, alias.length, -1);
+        }
+        return first;
+    }
+
+    private int gate(int op, int left, int right) {
+        if (gates == gateOps.length) {
+            int length = gates * 2;
+            gateOps = Arrays.copyOf(gateOps, length);
+            gateLefts = Arrays.copyOf(gateLefts, length);
+            gateRights = Arrays.copyOf(gateRights, length);
+            gateTargets = Arrays.copyOf(gateTargets, length);
+        }
+        int target = allocate(1);
+        gateOps[gates] = op;
+        gateLefts[gates] = left;
+        gateRights[gates] = right;
+        gateTargets[gates] = target;
+        gates++;
+        return target;
+    }
+
+    // follows the aliases of a slot to the slot that actually holds its value
+    private int resolve(int slot) {
+        int resolved = slot;
+        for (int steps = 0; alias[resolved] >= 0; steps++) {
+            if (steps > slots) {
+                throw new IllegalArgumentException("The design has a combinational loop");
+            }
+            resolved = alias[resolved];
+        }
+        while (alias[slot] >= 0 && alias[slot] != resolved) {
+            int next = alias[slot];
+            alias[slot] = resolved;
+            slot = next;
+        }
+        return resolved;
+    }
+
+    /**
+     * Levelizes the gates, merges equal gates and renumbers the slots densely.
+     */
+    private void schedule(Entity top, Map<Port, Integer> ports) {
+        int[] writer = new int[slots];
+        Arrays.fill(writer, -1);
+        for (int g = 0; g < gates; g++) {
+            writer[gateTargets[g]] = g;
+            gateLefts[g] = resolve(gateLefts[g]);
+            gateRights[g] = resolve(gateRights[g]);
+        }
+
+        // the level of a gate is one more than the highest level of the gates it reads
+        int[] level = new int[gates];
+        int[] state = new int[gates]; // 0 unvisited, 1 on the stack, 2 done
+        int[] stack = new int[gates];
+        for (int root = 0; root < gates; root++) {
+            if (state[root] != 0) {
+                continue;
+            }
+            int depth = 0;
+            stack[depth++] = root;
+            state[root] = 1;
+            while (depth > 0) {
+                int g = stack[depth - 1];
+                int left = writer[gateLefts[g]];
+                int right = writer[gateRights[g]];
+                if (left >= 0 && state[left] != 2) {
+                    if (state[left] == 1) {
+                        throw new IllegalArgumentException("The design has a combinational loop");
+                    }
+                    state[left] = 1;
+                    stack[depth++] = left;
+                } else if (right >= 0 && state[right] != 2) {
+                    if (state[right] == 1) {
+                        throw new IllegalArgumentException("The design has a combinational loop");
+                    }
+                    state[right] = 1;
+                    stack[depth++] = right;
+                } else {
+                    level[g] = 1 + Math.max(left >= 0 ? level[left] : -1, right >= 0 ? level[right] : -1);
+                    state[g] = 2;
+                    depth--;
+                }
+            }
+        }
+        Integer[] order = new Integer[gates];
+        for (int g = 0; g < gates; g++) {
+            order[g] = g;
+        }
+        Arrays.sort(order, (x, y) -> level[x] != level[y] ? Integer.compare(level[x], level[y]) : Integer.compare(x, y));
+
+        // renumber: constants, top-level inputs, then the gate outputs in evaluation order
+        int[] slot = new int[slots];
+        Arrays.fill(slot, -1);
+        slot[ZERO] = ZERO;
+        slot[ONE] = ONE;
+        int next = 2;
+        for (Port port : top.ports) {
+            if (port.direction == Port.Direction.IN) {
+                int first = ports.get(port);
+                for (int k = 0; k < port.length; k++) {
+                    slot[first + k] = next++;
+                }
+            }
+        }
+        ops = new int[gates];
+        lefts = new int[gates];
+        rights = new int[gates];
+        targets = new int[gates];
+        levels = new int[gates];
+        Map<Long, Integer> merged = new HashMap<>();
+        int count = 0;
+        for (int g : order) {
+            int left = renumbered(slot, gateLefts[g]);
+            int right = gateOps[g] == NOT ? ZERO : renumbered(slot, gateRights[g]);
+            if (gateOps[g] != NOT && left > right) {
+                // all binary operations are commutative
+                int swap = left;
+                left = right;
+                right = swap;
+            }
+            long key = ((long) gateOps[g] << 58) | ((long) left << 29) | right;
+            Integer existing = merged.get(key);
+            if (existing != null) {
+                slot[gateTargets[g]] = existing;
+                continue;
+            }
+            ops[count] = gateOps[g];
+            lefts[count] = left;
+            rights[count] = right;
+            targets[count] = next;
+            levels[count] = level[g];
+            levelCount = Math.max(levelCount, level[g] + 1);
+            slot[gateTargets[g]] = next;
+            merged.put(key, next++);
+            count++;
+        }
+        gateCount = count;
+        ops = Arrays.copyOf(ops, count);
+        lefts = Arrays.copyOf(lefts, count);
+        rights = Arrays.copyOf(rights, count);
+        targets = Arrays.copyOf(targets, count);
+        levels = Arrays.copyOf(levels, count);
+        slotCount = next;
+
+        for (Port port : top.ports) {
+            int[] bits = new int[port.length];
+            int first = ports.get(port);
+            for (int k = 0; k < port.length; k++) {
+                bits[k] = port.direction == Port.Direction.IN ? slot[first + k] : renumbered(slot, resolve(first + k));
+            }
+            (port.direction == Port.Direction.IN ? inputs : outputs).put(port.name, bits);
+        }
+    }
+
+    // slots that are neither constants, inputs nor gate outputs are never driven and read as 0
+    private static int renumbered(int[] slot, int resolved) {
+        return slot[resolved] >= 0 ? slot[resolved] : ZERO;
+    }
+}
@@ -0,0 +1,410 @@
+package MiniVHDL;
+
+import MiniVHDL.Circuit.Entity;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * The {@code NetlistCompiler} turns a levelized {@link Netlist} into a hidden JVM class implementing
+ * {@link Simulator.Evaluator}, so the gates run as straight-line bytecode that HotSpot compiles to machine code.
+ * <p>
+ * The gates are split into static methods of a few thousand bytes of bytecode each, below the size
+ * up to which HotSpot compiles methods, which are called one after another by {@code eval(long[] state)}.
+ * Within such a method every value is kept in a local variable after it was first loaded or computed,
+ * and only values read by later methods or by the outputs are stored back to the state array.
+ * </p>
+ * <p>
+ * Compiled classes are cached by the top-level {@link Entity} of the netlist, so simulating the same
+ * entity again reuses its class. The cache holds the entities weakly, and the hidden classes are
+ * unloaded together with the circuits they were compiled for.
+ * </p>
+ */
+class NetlistCompiler {
+    // HotSpot does not compile methods with more than 8000 bytes of bytecode
+    private static final int MAX_CHUNK_LENGTH = 7500;
+    private static final int MAX_CHUNKS = 8000;
+
+    private static final Map<Entity, Simulator.Evaluator> compiled = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * Returns the compiled evaluator of a netlist, compiling it on first use for its top-level entity.
+     *
+     * @param netlist the netlist to compile.
+     * @return the evaluator of the netlist.
+     * @throws IllegalArgumentException if the netlist is too large to be compiled.
+     */
+    public static Simulator.Evaluator compile(Netlist netlist) {
+        Simulator.Evaluator evaluator = compiled.get(netlist.top);
+        if (evaluator == null) {
+            evaluator = define(new NetlistCompiler(netlist).generate());
+            compiled.put(netlist.top, evaluator);
+        }
+        return evaluator;
+    }
+
+    private static Simulator.Evaluator define(byte[] classFile) {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classFile, true);
+            return (Simulator.Evaluator) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (Throwable e) {
+            throw new IllegalStateException("Cannot define compiled netlist", e);
+        }
+    }
+
+    private final Netlist netlist;
+    private final ConstantPool pool = new ConstantPool();
+
+    private NetlistCompiler(Netlist netlist) {
+        this.netlist = netlist;
+    }
+
+    /**
+     * Generates the class file.
+     *
+     * @return the bytes of the class file.
+     */
+    private byte[] generate() {
+        int[] chunkStarts = splitIntoChunks();
+        int chunks = chunkStarts.length - 1;
+        if (chunks > MAX_CHUNKS) {
+            throw new IllegalArgumentException("The design is too large to be compiled, simulate it interpreted instead");
+        }
+
+        // a value must be in the state array if it is an output or is read by a later chunk
+        int[] chunkOf = new int[netlist.gateCount];
+        for (int c = 0; c < chunks; c++) {
+            for (int g = chunkStarts[c]; g < chunkStarts[c + 1]; g++) {
+                chunkOf[g] = c;
+            }
+        }
+        boolean[] stored = new boolean[netlist.slotCount];
+        int firstTarget = netlist.gateCount > 0 ? netlist.targets[0] : netlist.slotCount;
+        for (int g = 0; g < netlist.gateCount; g++) {
+            for (int slot : new int[]{netlist.lefts[g], netlist.rights[g]}) {
+                if (slot >= firstTarget && chunkOf[slot - firstTarget] != chunkOf[g]) {
+                    stored[slot] = true;
+                }
+            }
+        }
+        for (int[] slots : netlist.outputs.values()) {
+            for (int slot : slots) {
+                stored[slot] = true;
+            }
+        }
+
+        int thisClass = pool.classRef("MiniVHDL/CompiledNetlist");
+        int objectClass = pool.classRef("java/lang/Object");
+        int evaluatorClass = pool.classRef("MiniVHDL/Simulator$Evaluator");
+        int objectInit = pool.methodRef(objectClass, "<init>", "()V");
+        List<byte[]> methods = new ArrayList<>();
+
+        Code init = new Code();
+        init.op(0x2a); // aload_0
+        init.op(0xb7); // invokespecial
+        init.u2(objectInit);
+        init.op(0xb1); // return
+        methods.add(method(0x0001, "<init>", "()V", init, 1, 1));
+
+        Code eval = new Code();
+        for (int c = 0; c < chunks; c++) {
+            eval.op(0x2b); // aload_1
+            eval.op(0xb8); // invokestatic
+            eval.u2(pool.methodRef(thisClass, "chunk" + c, "([J)V"));
+        }
+        eval.op(0xb1); // return
+        methods.add(method(0x0001, "eval", "([J)V", eval, 1, 2));
+
+        for (int c = 0; c < chunks; c++) {
+            methods.add(generateChunk(c, chunkStarts[c], chunkStarts[c + 1], stored));
+        }
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(65); // Java 21; straight-line code needs no stack map frames
+            pool.write(out);
+            out.writeShort(0x0010 | 0x0020); // ACC_FINAL | ACC_SUPER
+            out.writeShort(thisClass);
+            out.writeShort(objectClass);
+            out.writeShort(1);
+            out.writeShort(evaluatorClass);
+            out.writeShort(0); // fields
+            out.writeShort(methods.size());
+            for (byte[] method : methods) {
+                out.write(method);
+            }
+            out.writeShort(0); // attributes
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // splits the gates so the bytecode of each chunk stays below MAX_CHUNK_LENGTH; the length of a gate is
+    // bounded by assuming its output is stored and kept, and its inputs are loaded from the state array
+    // unless they were already loaded or computed in the same chunk
+    private int[] splitIntoChunks() {
+        List<Integer> starts = new ArrayList<>();
+        starts.add(0);
+        Set<Integer> loaded = new HashSet<>();
+        int length = 0;
+        for (int g = 0; g < netlist.gateCount; g++) {
+            int cost = 1 + pushLength(netlist.targets[g]) + 2 + 4 + 5;
+            if (length + cost + 2 * maxLoadLength(Integer.MAX_VALUE) > MAX_CHUNK_LENGTH) {
+                starts.add(g);
+                loaded.clear();
+                length = 0;
+            }
+            cost += loaded.add(netlist.lefts[g]) ? maxLoadLength(netlist.lefts[g]) : 4;
+            cost += loaded.add(netlist.rights[g]) ? maxLoadLength(netlist.rights[g]) : 4;
+            loaded.add(netlist.targets[g]);
+            length += cost;
+        }
+        starts.add(netlist.gateCount);
+        return starts.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static int maxLoadLength(int slot) {
+        return 1 + pushLength(slot) + 1 + 1 + 4;
+    }
+
+    private byte[] generateChunk(int chunk, int start, int end, boolean[] stored) {
+        // the number of reads of each slot left in this chunk decides whether a value is kept in a local
+        Map<Integer, Integer> readsLeft = new HashMap<>();
+        for (int g = start; g < end; g++) {
+            readsLeft.merge(netlist.lefts[g], 1, Integer::sum);
+            if (netlist.ops[g] != Netlist.NOT) {
+                readsLeft.merge(netlist.rights[g], 1, Integer::sum);
+            }
+        }
+        Map<Integer, Integer> locals = new HashMap<>();
+        Code code = new Code();
+        for (int g = start; g < end; g++) {
+            int target = netlist.targets[g];
+            boolean store = stored[target];
+            boolean keep = readsLeft.getOrDefault(target, 0) > 0;
+            if (store) {
+                code.op(0x2a); // aload_0
+                code.push(target);
+            }
+            load(code, netlist.lefts[g], readsLeft, locals);
+            if (netlist.ops[g] == Netlist.NOT) {
+                code.op(0x14); // ldc2_w -1
+                code.u2(pool.minusOne());
+                code.op(0x83); // lxor
+            } else {
+                load(code, netlist.rights[g], readsLeft, locals);
+                code.op(switch (netlist.ops[g]) {
+                    case Netlist.AND, Netlist.NAND -> 0x7f; // land
+                    case Netlist.OR, Netlist.NOR -> 0x81;   // lor
+                    default -> 0x83;                        // lxor
+                });
+                if (netlist.ops[g] == Netlist.NAND || netlist.ops[g] == Netlist.NOR || netlist.ops[g] == Netlist.XNOR) {
+                    code.op(0x14); // ldc2_w -1
+                    code.u2(pool.minusOne());
+                    code.op(0x83); // lxor
+                }
+            }
+            if (store && keep) {
+                code.op(0x5e); // dup2_x2
+            }
+            if (store) {
+                code.op(0x50); // lastore
+            }
+            if (keep) {
+                int local = 1 + 2 * locals.size();
+                locals.put(target, local);
+                code.local(0x37, local); // lstore
+            } else if (!store) {
+                code.op(0x58); // pop2, nothing reads the value
+            }
+        }
+        code.op(0xb1); // return
+        return method(0x000a, "chunk" + chunk, "([J)V", code, 8, 1 + 2 * locals.size());
+    }
+
+    private void load(Code code, int slot, Map<Integer, Integer> readsLeft, Map<Integer, Integer> locals) {
+        int left = readsLeft.merge(slot, -1, Integer::sum);
+        if (slot == Netlist.ZERO) {
+            code.op(0x09); // lconst_0
+        } else if (slot == Netlist.ONE) {
+            code.op(0x14); // ldc2_w -1
+            code.u2(pool.minusOne());
+        } else if (locals.containsKey(slot)) {
+            code.local(0x16, locals.get(slot)); // lload
+        } else {
+            code.op(0x2a); // aload_0
+            code.push(slot);
+            code.op(0x2f); // laload
+            if (left > 0) {
+                int local = 1 + 2 * locals.size();
+                locals.put(slot, local);
+                code.op(0x5c); // dup2
+                code.local(0x37, local); // lstore
+            }
+        }
+    }
+
+    private byte[] method(int access, String name, String descriptor, Code code, int maxStack, int maxLocals) {
+        if (code.size() > 65535) {
+            throw new IllegalStateException("method " + name + " too large");
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeShort(access);
+            out.writeShort(pool.utf8(name));
+            out.writeShort(pool.utf8(descriptor));
+            out.writeShort(1);
+            out.writeShort(pool.utf8("Code"));
+            out.writeInt(2 + 2 + 4 + code.size() + 2 + 2);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(code.size());
+            code.writeTo(out);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // attributes
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int pushLength(int value) {
+        if (value <= 5) {
+            return 1;
+        } else if (value <= Byte.MAX_VALUE) {
+            return 2;
+        } else if (value <= Short.MAX_VALUE) {
+            return 3;
+        }
+        return 10;
+    }
+
+    /**
+     * The bytecode of a method under construction.
+     */
+    private static class Code extends ByteArrayOutputStream {
+        void op(int opcode) {
+            write(opcode);
+        }
+
+        void u2(int value) {
+            write(value >>> 8);
+            write(value);
+        }
+
+        // pushes an int constant without using the constant pool, so large designs cannot overflow it
+        void push(int value) {
+            if (value <= 5) {
+                op(0x03 + value); // iconst_<n>
+            } else if (value <= Byte.MAX_VALUE) {
+                op(0x10); // bipush
+                write(value);
+            } else if (value <= Short.MAX_VALUE) {
+                op(0x11); // sipush
+                u2(value);
+            } else {
+                op(0x11); // sipush high
+                u2(value >>> 15);
+                op(0x10); // bipush 15
+                write(15);
+                op(0x78); // ishl
+                op(0x11); // sipush low
+                u2(value & 0x7fff);
+                op(0x80); // ior
+            }
+        }
+
+        // lload or lstore of a local variable, in the shortest form
+        void local(int opcode, int index) {
+            if (index <= 3) {
+                op((opcode == 0x16 ? 0x1e : 0x3f) + index); // lload_<n>, lstore_<n>
+            } else if (index <= 255) {
+                op(opcode);
+                write(index);
+            } else {
+                op(0xc4); // wide
+                op(opcode);
+                u2(index);
+            }
+        }
+    }
+
+    /**
+     * The constant pool of the generated class.
+     */
+    private static class ConstantPool {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> entries = new HashMap<>();
+        private int count = 1;
+
+        int utf8(String value) {
+            return entry("U" + value, 1, () -> out.writeUTF(value));
+        }
+
+        int classRef(String name) {
+            int nameIndex = utf8(name);
+            return entry("C" + name, 7, () -> out.writeShort(nameIndex));
+        }
+
+        int methodRef(int classIndex, String name, String descriptor) {
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            int nameAndType = entry("N" + name + descriptor, 12, () -> {
+                out.writeShort(nameIndex);
+                out.writeShort(descriptorIndex);
+            });
+            return entry("M" + classIndex + "." + name + descriptor, 10, () -> {
+                out.writeShort(classIndex);
+                out.writeShort(nameAndType);
+            });
+        }
+
+        int minusOne() {
+            return entry("J-1", 5, () -> out.writeLong(-1L));
+        }
+
+        private interface Body {
+            void write() throws IOException;
+        }
+
+        private int entry(String key, int tag, Body body) {
+            Integer index = entries.get(key);
+            if (index == null) {
+                index = count;
+                try {
+                    out.writeByte(tag);
+                    body.write();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                // long constants take two entries
+                count += tag == 5 ? 2 : 1;
+                entries.put(key, index);
+            }
+            return index;
+        }
+
+        void write(DataOutputStream classFile) throws IOException {
+            classFile.writeShort(count);
+            bytes.writeTo(classFile);
+        }
+    }
+}
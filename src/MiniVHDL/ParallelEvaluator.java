@@ -0,0 +1,110 @@
+package MiniVHDL;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * The {@code ParallelEvaluator} evaluates the levels of a {@link Netlist} on the threads of a {@link ForkJoinPool}.
+ * <p>
+ * The gates of one level never read each other, so a level can be split into parts that are evaluated at the
+ * same time, and all parts of a level must be done before the next level starts. The gates are partitioned
+ * into bands of consecutive levels: a level with enough gates is a band of its own and is split into one part
+ * per thread of the pool, each of at least {@link #GRAIN} gates, while runs of narrower levels form bands that
+ * one thread evaluates in order, where splitting would cost more than it saves. Joining the parts of a band is
+ * the barrier before the next band.
+ * </p>
+ * <p>
+ * Since the gates of a level are numbered consecutively and write consecutive slots, each part writes its own
+ * range of the state, and threads only share the words at the boundaries of their ranges.
+ * </p>
+ */
+class ParallelEvaluator implements Simulator.Evaluator {
+    public static final int GRAIN = 512;
+
+    private final Netlist netlist;
+    private final ForkJoinPool pool;
+    private final int firstTarget;
+    // band b holds the gates bandStarts[b] up to bandStarts[b + 1] - 1, split into parts[b] parts
+    private final int[] bandStarts;
+    private final int[] parts;
+    private final int parallelBandCount;
+
+    /**
+     * Partitions the levels of a netlist into bands for the threads of a pool.
+     *
+     * @param netlist the netlist to evaluate.
+     * @param pool    the pool evaluating the parts of the wide levels.
+     */
+    public ParallelEvaluator(Netlist netlist, ForkJoinPool pool) {
+        this.netlist = netlist;
+        this.pool = pool;
+        firstTarget = netlist.slotCount - netlist.gateCount;
+
+        List<Integer> starts = new ArrayList<>();
+        List<Integer> counts = new ArrayList<>();
+        int start = 0;
+        while (start < netlist.gateCount) {
+            int end = start;
+            while (end < netlist.gateCount && netlist.levels[end] == netlist.levels[start]) {
+                end++;
+            }
+            int count = Math.min(pool.getParallelism(), (end - start) / GRAIN);
+            if (count > 1 || counts.isEmpty() || counts.getLast() > 1) {
+                starts.add(start);
+                counts.add(Math.max(count, 1));
+            }
+            start = end;
+        }
+        starts.add(netlist.gateCount);
+        bandStarts = starts.stream().mapToInt(Integer::intValue).toArray();
+        parts = counts.stream().mapToInt(Integer::intValue).toArray();
+        parallelBandCount = (int) counts.stream().filter(count -> count > 1).count();
+    }
+
+    /**
+     * Returns the number of bands that are split across threads.
+     *
+     * @return the number of wide levels.
+     */
+    public int getParallelBandCount() {
+        return parallelBandCount;
+    }
+
+    @Override
+    public void eval(long[] state) {
+        if (parallelBandCount == 0) {
+            // nothing to split, so the calling thread does not need to wait for the pool
+            evaluate(state, 0, netlist.gateCount);
+            return;
+        }
+        // the bands are stepped from within the pool, so the barriers are joins between its workers
+        pool.invoke(ForkJoinTask.adapt(() -> {
+            for (int b = 0; b < parts.length; b++) {
+                int from = bandStarts[b];
+                int to = bandStarts[b + 1];
+                if (parts[b] == 1) {
+                    evaluate(state, from, to);
+                    continue;
+                }
+                List<ForkJoinTask<?>> tasks = new ArrayList<>(parts[b]);
+                for (int p = 0; p < parts[b]; p++) {
+                    int partFrom = from + (int) ((long) (to - from) * p / parts[b]);
+                    int partTo = from + (int) ((long) (to - from) * (p + 1) / parts[b]);
+                    tasks.add(ForkJoinTask.adapt(() -> evaluate(state, partFrom, partTo)));
+                }
+                ForkJoinTask.invokeAll(tasks);
+            }
+        }));
+    }
+
+    private void evaluate(long[] state, int from, int to) {
+        int[] ops = netlist.ops;
+        int[] lefts = netlist.lefts;
+        int[] rights = netlist.rights;
+        for (int g = from; g < to; g++) {
+            state[firstTarget + g] = Simulator.apply(ops[g], state[lefts[g]], state[rights[g]]);
+        }
+    }
+}
@@ -1,8 +1,13 @@
 
 
 package MiniVHDL;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import MiniVHDL.Circuit.*;
 import MiniVHDL.Circuit.Expression.*;
 import MiniVHDL.Circuit.Wire.*;
@@ -28,7 +33,180 @@ public class Parser {
     public Errors errors;
 
     Circuit circuit;
+    Circuit library; // linked entities of all source files, set by link()
+    WorkLibrary workLibrary; // precompiled entities that components may refer to, or null
+    boolean hashSources; // set when the design units are looked up in a ModuleCache
+    int endLine, endCol, endErrDist; // position and error distance at the end of the design
+    int checkLine, checkCol, checkErrDist; // position and error distance of the deferred check link() runs, checkLine is 0 otherwise
+    List<Runnable> linkChecks = new ArrayList<>(); // checks of references to entities of other files, in source order
+    Map<String, PortWire> unboundPorts; // names taken as ports while the entity of the architecture is not known, or null
+    List<Runnable> unboundChecks; // checks of the architecture that wait for the ports of its entity, or null
+    boolean unresolvedPorts; // set by bind() once a name taken as a port is no port of the entity
+    Map<String, String> identifiers = new HashMap<>();
+
+    // returns the canonical lower-case instance of an identifier, so each name is only allocated once
+    String intern(String val) {
+        String ident = identifiers.get(val);
+        if (ident == null) {
+            ident = val.toLowerCase();
+            String existing = identifiers.putIfAbsent(ident, ident);
+            if (existing != null) {
+                ident = existing;
+            }
+            identifiers.put(val, ident);
+        }
+        return ident;
+    }
+
+    // returns a check that reports its errors at the current token (see SemErrAtCheck), to be run by link()
+    Runnable defer(Runnable check) {
+        int line = t.line, col = t.col, distance = errDist;
+        return () -> {
+            int outerLine = checkLine, outerCol = checkCol, outerErrDist = checkErrDist;
+            checkLine = line; checkCol = col; checkErrDist = distance;
+            try {
+                check.run();
+            } finally {
+                checkLine = outerLine; checkCol = outerCol; checkErrDist = outerErrDist;
+            }
+        };
+    }
+
+    // runs a check that needs the ports of the current architecture's entity, now or once link() has bound them
+    void check(Runnable check) {
+        if (unboundChecks == null) check.run();
+        else unboundChecks.add(defer(check));
+    }
+
+    // looks up a port or signal; while the entity is not known, other names are taken as its ports until link()
+    Wire getWire(Architecture architecture, String ident) {
+        Wire wire = architecture.getWireFromIdent(ident);
+        if (wire == null && unboundPorts != null) {
+            PortWire port = unboundPorts.computeIfAbsent(ident, name -> new PortWire(0, new Port(name, null, 0, 0)));
+            // reported at each use like an undefined name, if bind() finds no such port
+            check(() -> {
+                if (port.port.direction == null) {
+                    SemErrAtCheck("port or signal not defined");
+                }
+            });
+            wire = port;
+        }
+        if (wire == null) {
+            SemErr("port or signal not defined");
+        }
+        return wire;
+    }
+
+    // returns the expression, or null if it contains a name that bind() found to be no port,
+    // so the checks skip it like an expression with an undefined name in a single file
+    Expression resolved(Expression expr) {
+        if (!unresolvedPorts) return expr;
+        ArrayDeque<Expression> pending = new ArrayDeque<>();
+        if (expr != null) pending.push(expr);
+        while (!pending.isEmpty()) {
+            switch (pending.pop()) {
+                case PortWire wire when wire.port != null && wire.port.direction == null -> {
+                    return null;
+                }
+                case WidthExpression range when range.source != null -> pending.push(range.source);
+                case NegationExpression negation -> pending.push(negation.expression);
+                case OperationExpression operation -> {
+                    pending.push(operation.right);
+                    pending.push(operation.left);
+                }
+                default -> {
+                }
+            }
+        }
+        return expr;
+    }
+
+    // returns the bits of a wire from the given index on, whose offset is known once the wire is bound
+    WidthExpression range(Expression wire, int index, int width) {
+        WidthExpression range = new WidthExpression(width, wire, 0);
+        check(() -> {
+            if (resolved(wire) == null) return;
+            range.offset = index - wire.getIndexOffset();
+            if (range.offset > wire.width || range.offset < 0) {
+                SemErrAtCheck("Index out of bounds");
+            }
+        });
+        return range;
+    }
+
+    // reports the ports a component declares differently from its entity
+    void checkPorts(Entity entity, List<Port> ports) {
+        List<Port> onlyInEntity = entity.ports.stream()
+                .filter(port -> !ports.contains(port))
+                .toList();
+        List<Port> onlyInComponent = ports.stream()
+                .filter(port -> !entity.ports.contains(port))
+                .toList();
+        onlyInEntity.forEach(port -> SemErrAtCheck("Port \"" + port.name+"\" of referenced entity is not defined equal in component"));
+        onlyInComponent.forEach(port -> SemErrAtCheck("Port \"" + port.name+"\" is not defined equal in referenced entity"));
+    }
+
+    // connects the actual of the i-th port in a port map
+    void connect(Architecture architecture, Instance instance, Expression expr, int i) {
+        check(() -> {
+            Expression actual = resolved(expr);
+            if(instance.component.ports.get(i).direction==Port.Direction.OUT && actual!=null && !actual.isAssignable()){
+                SemErrAtCheck("Cannot assign to expression");
+            }
+            architecture.addPortConnection(instance, actual, i);
+        });
+    }
+
+    // binds an architecture to its entity from another file and runs the checks that waited for its ports;
+    // a name that is no port stays a placeholder, and the checks of the expressions using it are skipped (see resolved())
+    void bind(Architecture architecture, Entity entity, Runnable undefined, Map<String, PortWire> ports, List<Runnable> checks) {
+        if (entity == null) {
+            undefined.run();
+            return;
+        }
+        for (PortWire wire : ports.values()) {
+            Port declared = entity.ports.stream().filter(p -> p.name.equals(wire.port.name)).findFirst().orElse(null);
+            if (declared != null) {
+                wire.port = declared;
+                wire.width = declared.length;
+            } else {
+                unresolvedPorts = true;
+            }
+        }
+        architecture.setEntity(entity);
+        checks.forEach(Runnable::run);
+    }
+
+    // resolves the references to entities of other files against the linked circuit and runs the checks that
+    // waited for them, sorting their errors in with those found while parsing
+    public void link(Circuit library) {
+        this.library = library;
+        try {
+            linkChecks.forEach(Runnable::run);
+        } finally {
+            errors.diagnostics.sort(Comparator.comparingInt(Diagnostic::line).thenComparingInt(Diagnostic::col));
+        }
+    }
 
+    // returns the digest of the source text from the given position to the end of the last token, if sources are hashed
+    String hashSource(long start) {
+        return hashSources ? ModuleCache.digest(scanner.buffer.GetString(start, Math.max(start, t.pos + t.val.length()))) : null;
+    }
+
+    // reports a semantic error found on the linked circuit at the end of the design, like SemErr would have there
+    public void SemErrAtEnd(String msg) {
+        if (endErrDist >= minErrDist) errors.SemErr(endLine, endCol, msg);
+    }
+
+    // reports a semantic error in a check: at the current token while parsing, or where the check was deferred while link() runs it
+    void SemErrAtCheck(String msg) {
+        if (checkLine == 0) {
+            SemErr(msg);
+            return;
+        }
+        if (checkErrDist >= minErrDist) errors.SemErr(checkLine, checkCol, msg);
+        checkErrDist = 0;
+    }
 
 
     public Parser(Scanner scanner) {
@@ -90,7 +268,7 @@ public class Parser {
     }
 
     void MiniVHDL() {
-        circuit=new Circuit(); Entity entity;
+        circuit=new Circuit(); circuit.workLibrary=workLibrary; Entity entity;
         while (StartOf(1)) {
             if (la.kind == 4) {
                 LibraryClause();
@@ -98,15 +276,12 @@ public class Parser {
                 UseClause();
             } else if (la.kind == 9) {
                 entity = EntityDecl();
-                circuit.entities.add(entity);
+                circuit.addEntity(entity);
             } else {
                 ArchitectureDecl(circuit);
             }
         }
-        String undriven= circuit.getUndrivenWires();
-        if(!undriven.isEmpty()){
-            SemErr("The following wires are not driven:\n%s".formatted(undriven));
-        }
+        endLine = t.line; endCol = t.col; endErrDist = errDist;
     }
 
     void LibraryClause() {
@@ -125,8 +300,9 @@ public class Parser {
         Entity  entity;
         List<Port> ports;
         Expect(9);
+        long start = t.pos;
         Expect(1);
-        String name = t.val.toLowerCase();
+        String name = intern(t.val);
         Expect(10);
         Expect(11);
         Expect(12);
@@ -139,39 +315,44 @@ public class Parser {
         }
         if (la.kind == 1) {
             Get();
-            if(!t.val.toLowerCase().equals(name)){
+            if(!intern(t.val).equals(name)){
                 SemErr("Name not matching declaration");
             }
         }
         Expect(6);
         entity=new Entity(name, ports);
+        entity.sourceHash = hashSource(start);
         return entity;
     }
 
     void ArchitectureDecl(Circuit circuit) {
-        Component component; List<Signal> signals;
+        Component component; List<Signal> signals; Runnable unresolved = null;
         Expect(21);
+        long start = t.pos;
         Expect(1);
-        String architectureName = t.val.toLowerCase();
+        String architectureName = intern(t.val);
         Architecture architecture = new Architecture(architectureName);
         Expect(22);
         Expect(1);
-        String entityName = t.val.toLowerCase();
+        String entityName = intern(t.val);
         Entity entity = circuit.getEntityByName(entityName);
-        if (entity == null) {
-            SemErr("referenced entity does not exist");
+        if (entity != null) {
+            architecture.setEntity(entity);
         } else {
-            entity.architecture = architecture;
-            architecture.entity = entity;
+            // the entity may be declared in another file, whose ports link() binds
+            unboundPorts = new LinkedHashMap<>();
+            unboundChecks = new ArrayList<>();
+            unresolved = defer(() -> SemErrAtCheck("referenced entity does not exist"));
         }
+        circuit.addArchitecture(architecture);
         Expect(10);
         while (la.kind == 24) {
             component = ComponentDecl(circuit);
-            architecture.components.add(component);
+            architecture.addComponent(component);
         }
         while (la.kind == 25) {
             signals = SignalDecl();
-            architecture.signals.addAll(signals);
+            signals.forEach(architecture::addSignal);
         }
         Expect(23);
         while (la.kind == 1 || la.kind == 37 || la.kind == 38) {
@@ -183,11 +364,20 @@ public class Parser {
         }
         if (la.kind == 1) {
             Get();
-            if(!t.val.toLowerCase().equals(architectureName)){
+            if(!intern(t.val).equals(architectureName)){
                 SemErr("Name not matching declaration");
             }
         }
         Expect(6);
+        architecture.sourceHash = hashSource(start);
+        if (unresolved != null) {
+            // after the checks of the component declarations, which come first in the source
+            Map<String, PortWire> ports = unboundPorts;
+            List<Runnable> checks = unboundChecks;
+            Runnable undefined = unresolved;
+            linkChecks.add(() -> bind(architecture, library.getEntityByName(entityName), undefined, ports, checks));
+            unboundPorts = null; unboundChecks = null;
+        }
     }
 
     List<Port>  PortList() {
@@ -219,11 +409,11 @@ public class Parser {
         List<String>  idents;
         idents = new ArrayList<>();
         Expect(1);
-        idents.add(t.val.toLowerCase());
+        idents.add(intern(t.val));
         while (la.kind == 15) {
             Get();
             Expect(1);
-            idents.add(t.val.toLowerCase());
+            idents.add(intern(t.val));
         }
         return idents;
     }
@@ -274,11 +464,9 @@ public class Parser {
         List<Port> ports;
         Expect(24);
         Expect(1);
-        String name = t.val.toLowerCase();
+        String name = intern(t.val);
         Entity componentEntity = circuit.getEntityByName(name);
-        if(componentEntity==null){
-            SemErr("There is no matching entity to this component");
-        }
+        Runnable undefined = defer(() -> SemErrAtCheck("There is no matching entity to this component"));
         if (la.kind == 10) {
             Get();
         }
@@ -288,24 +476,17 @@ public class Parser {
         Expect(13);
         Expect(6);
         if(componentEntity!=null){
-            List<Port> onlyInEntity = componentEntity.ports.stream()
-                    .filter(port -> !ports.contains(port))
-                    .toList();
-            List<Port> onlyInComponent = ports.stream()
-                    .filter(port -> !componentEntity.ports.contains(port))
-                    .toList();
-            if (!onlyInEntity.isEmpty()) {
-                onlyInEntity.forEach(port -> SemErr("Port \"" + port.name+"\" of referenced entity is not defined equal in component"));
-            }
-            if (!onlyInComponent.isEmpty()) {
-                onlyInComponent.forEach(port -> SemErr("Port \"" + port.name+"\" is not defined equal in referenced entity"));
-            }
+            checkPorts(componentEntity, ports);
+        } else {
+            // the entity may be declared in another file
+            Runnable mismatch = defer(() -> checkPorts(library.getEntityByName(name), ports));
+            linkChecks.add(() -> (library.getEntityByName(name) == null ? undefined : mismatch).run());
         }
         Expect(14);
         Expect(24);
         if (la.kind == 1) {
             Get();
-            if(!t.val.toLowerCase().equals(name)){
+            if(!intern(t.val).equals(name)){
                 SemErr("Name not matching declaration");
             }
         }
@@ -340,10 +521,10 @@ public class Parser {
 
     void InstantiationStmt(Architecture architecture) {
         Expect(1);
-        String instanceName = t.val.toLowerCase();
+        String instanceName = intern(t.val);
         Expect(3);
         Expect(1);
-        String componentName = t.val.toLowerCase();
+        String componentName = intern(t.val);
         Component component = architecture.getComponentFromIdent(componentName);
         if (component == null) {
             SemErr("component not defined");
@@ -364,17 +545,23 @@ public class Parser {
         to = Indexedident(architecture);
         Expect(26);
         from = Expression(architecture);
-        if (from!=null && to!=null &&from.width != to.width) {
-            SemErr("assignment operands are not of equal width");
-        }
+        check(() -> {
+            Expression source = resolved(from), target = resolved(to);
+            if (source!=null && target!=null && source.width != target.width) {
+                SemErrAtCheck("assignment operands are not of equal width");
+            }
+        });
         Expect(6);
-        if(to!=null&&!to.isAssignable()){
-            SemErr("Cannot assign to expression");
-        }
-        if(to!=null&&architecture.isAlreadyDriven(to)){
-            SemErr("Assignment destination is already driven");
-        }
-        architecture.connections.add(new Connection(from, to));
+        check(() -> {
+            Expression source = resolved(from), target = resolved(to);
+            if(target!=null&&!target.isAssignable()){
+                SemErrAtCheck("Cannot assign to expression");
+            }
+            if(target!=null&&architecture.isAlreadyDriven(target)){
+                SemErrAtCheck("Assignment destination is already driven");
+            }
+            architecture.addConnection(new Connection(source, target));
+        });
     }
 
     Expression  Indexedident(Architecture architecture) {
@@ -382,10 +569,7 @@ public class Parser {
         expr = null;
         if (la.kind == 1) {
             Get();
-            expr = architecture.getWireFromIdent(t.val.toLowerCase());
-            if(expr==null){
-                SemErr("port or signal not defined");
-            }
+            expr = getWire(architecture, intern(t.val));
             if (la.kind == 12) {
                 Get();
                 Expect(2);
@@ -398,20 +582,12 @@ public class Parser {
                 }
                 if (expr != null) {
                     if (end == null) {
-                        int offset=start - expr.getIndexOffset();
-                        if(offset>expr.width||offset<0){
-                            SemErr("Index out of bounds");
-                        }
-                        expr = new WidthExpression(1, expr, offset);
+                        expr = range(expr, start, 1);
                     } else {
                         if(start<end){
                             SemErr("DOWNTO start must be larger than end");
                         }
-                        int offset=end - expr.getIndexOffset();
-                        if(offset>expr.width||offset<0){
-                            SemErr("Index out of bounds");
-                        }
-                        expr = new WidthExpression(start - end + 1, expr, offset);
+                        expr = range(expr, end, start - end + 1);
                     }
                 }
                 Expect(13);
@@ -465,10 +641,20 @@ public class Parser {
                 }
             }
             right = SimpleTerm(architecture);
-            if (op!=OperationExpression.Operation.CAT && expr.width != right.width) {
-                SemErr("operands are not of equal width");
+            if (expr==null||right==null) {
+                expr = null;
+            } else {
+                OperationExpression operation = new OperationExpression(0, expr, right, op);
+                check(() -> {
+                    if (resolved(operation) == null) return;
+                    Expression left = operation.left;
+                    if (operation.operation!=OperationExpression.Operation.CAT && left.width != operation.right.width) {
+                        SemErrAtCheck("operands are not of equal width");
+                    }
+                    operation.width = operation.operation!=OperationExpression.Operation.CAT?left.width:left.width+operation.right.width;
+                });
+                expr = operation;
             }
-            expr = new OperationExpression(op!=OperationExpression.Operation.CAT?expr.width:expr.width+right.width, expr, right, op);
         }
         return expr;
     }
@@ -490,27 +676,23 @@ public class Parser {
             int end = Integer.parseInt(t.val);
             Expect(35);
             Expect(1);
-            String ident = t.val.toLowerCase();
-            Expression source = architecture.getWireFromIdent(ident);
-            if (source == null) {
-                SemErr("port or signal not defined");
-            }
+            String ident = intern(t.val);
+            Expression source = getWire(architecture, ident);
             if (la.kind == 12) {
                 Get();
                 Expect(2);
                 int index = Integer.parseInt(t.val);
                 Expect(13);
                 if(source!=null){
-                    int offset = index - source.getIndexOffset();
-                    if(offset>source.width||offset<0){
-                        SemErr("Index out of bounds");
-                    }
-                    source = new WidthExpression(1, source, offset);
+                    source = range(source, index, 1);
                 }
             }
-            if (source != null && source.width != 1) {
-                SemErr("width expansion source is not of length 1");
-            }
+            Expression expanded = source;
+            check(() -> {
+                if (resolved(expanded) != null && expanded.width != 1) {
+                    SemErrAtCheck("width expansion source is not of length 1");
+                }
+            });
             expr = new WidthExpression(start - end + 1, source, end);
         } else if (la.kind == 12) {
             Get();
@@ -518,7 +700,9 @@ public class Parser {
             Expect(13);
         } else SynErr(45);
         if(negate&&expr!=null) {
-            expr=new NegationExpression(expr.width,expr);
+            NegationExpression negation = new NegationExpression(0,expr);
+            check(() -> negation.width = negation.expression.width);
+            expr=negation;
         }
         return expr;
     }
@@ -537,10 +721,7 @@ public class Parser {
         if (i >= instance.component.ports.size()) {
             SemErr("port map does not match number of ports");
         } else {
-            if(instance.component.ports.get(i).direction==Port.Direction.OUT && !expr.isAssignable()){
-                SemErr("Cannot assign to expression");
-            }
-            architecture.addPortConnection(instance, expr, i);
+            connect(architecture, instance, expr, i);
         }
         while (la.kind == 15) {
             Get();
@@ -557,10 +738,7 @@ public class Parser {
             if (i > instance.component.ports.size()) {
                 SemErr("port map does not match number of ports");
             } else {
-                if(instance.component.ports.get(i).direction==Port.Direction.OUT && !expr.isAssignable()){
-                    SemErr("Cannot assign to expression");
-                }
-                architecture.addPortConnection(instance, expr, i);
+                connect(architecture, instance, expr, i);
             }
         }
         if (i != instance.component.ports.size() - 1) {
@@ -617,18 +795,15 @@ public class Parser {
 
 class Errors {
     public int count = 0;                                    // number of errors detected
-    public java.io.PrintStream errorStream = System.out;     // error messages go to this stream
-    public String errMsgFormat = "-- line {0} col {1}: {2}"; // 0=line, 1=column, 2=text
+    public int maxErrors = Integer.MAX_VALUE;                // parsing is aborted once this many errors are detected
+    public List<Diagnostic> diagnostics = new ArrayList<>(); // errors and warnings in the order they were detected
 
-    protected void printMsg(int line, int column, String msg) {
-        StringBuffer b = new StringBuffer(errMsgFormat);
-        int pos = b.indexOf("{0}");
-        if (pos >= 0) { b.delete(pos, pos+3); b.insert(pos, line); }
-        pos = b.indexOf("{1}");
-        if (pos >= 0) { b.delete(pos, pos+3); b.insert(pos, column); }
-        pos = b.indexOf("{2}");
-        if (pos >= 0) b.replace(pos, pos+3, msg);
-        errorStream.println(b.toString());
+    protected void report(int line, int column, String code, String msg) {
+        diagnostics.add(new Diagnostic(line, column, code, msg));
+    }
+
+    protected void countError() {
+        if (++count >= maxErrors) throw new ErrorLimitException(count);
     }
 
     public void SynErr (int line, int col, int n) {
@@ -686,31 +861,25 @@ class Errors {
             case 49: s = "invalid Immediate"; break;
             default: s = "error " + n; break;
         }
-        printMsg(line, col, s);
-        count++;
+        report(line, col, "SYN" + n, s);
+        countError();
     }
 
     public void SemErr (int line, int col, String s) {
-        printMsg(line, col, s);
-        count++;
+        report(line, col, "SEM", s);
+        countError();
     }
 
     public void SemErr (String s) {
-        errorStream.println(s);
-        count++;
+        report(0, 0, "SEM", s);
+        countError();
     }
 
     public void Warning (int line, int col, String s) {
-        printMsg(line, col, s);
+        report(line, col, "WARN", s);
     }
 
     public void Warning (String s) {
-        errorStream.println(s);
+        report(0, 0, "WARN", s);
     }
 } // Errors
-
-
-class FatalError extends RuntimeException {
-    public static final long serialVersionUID = 1L;
-    public FatalError(String s) { super(s); }
-}
@@ -3,13 +3,20 @@ package MiniVHDL;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.Map;
-import java.util.HashMap;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntSupplier;
 
 class Token {
     public int kind;    // token kind
-    public int pos;     // token position in bytes in the source text (starting at 0)
-    public int charPos; // token position in characters in the source text (starting at 0)
+    public long pos;    // token position in bytes in the source text (starting at 0)
+    public long charPos; // token position in characters in the source text (starting at 0)
     public int col;     // token column (starting at 1)
     public int line;    // token line (starting at 1)
     public String val;  // token value
@@ -24,32 +31,28 @@ class Buffer {
     // 1) seekable stream (file)
     //    a) whole stream in buffer
     //    b) part of stream in buffer
-    // 2) non seekable stream (network, console)
+    // Non seekable streams (network, console) are read by the StreamBuffer.
 
     public static final int EOF = Character.MAX_VALUE + 1;
     private static final int MIN_BUFFER_LENGTH = 1024; // 1KB
     private static final int MAX_BUFFER_LENGTH = MIN_BUFFER_LENGTH * 64; // 64KB
     private byte[] buf;   // input buffer
-    private int bufStart; // position of first byte in buffer relative to input stream
+    private long bufStart; // position of first byte in buffer relative to input stream
     private int bufLen;   // length of buffer
-    private int fileLen;  // length of input stream (may change if stream is no file)
+    private long fileLen; // length of input stream (may change if stream is no file)
     private int bufPos;      // current position in buffer
     private RandomAccessFile file; // input stream (seekable)
-    private InputStream stream; // growing input stream (e.g.: console, network)
 
-    public Buffer(InputStream s) {
-        stream = s;
-        fileLen = bufLen = bufStart = bufPos = 0;
-        buf = new byte[MIN_BUFFER_LENGTH];
+    protected Buffer() {
     }
 
     public Buffer(String fileName) {
         try {
             file = new RandomAccessFile(fileName, "r");
-            fileLen = (int) file.length();
-            bufLen = Math.min(fileLen, MAX_BUFFER_LENGTH);
+            fileLen = file.length();
+            bufLen = (int) Math.min(fileLen, MAX_BUFFER_LENGTH);
             buf = new byte[bufLen];
-            bufStart = Integer.MAX_VALUE; // nothing in buffer so far
+            bufStart = Long.MAX_VALUE; // nothing in buffer so far
             if (fileLen > 0) setPos(0); // setup buffer to position 0 (start)
             else bufPos = 0; // index 0 is already after the file, thus setPos(0) is invalid
             if (bufLen == fileLen) Close();
@@ -67,7 +70,6 @@ class Buffer {
         fileLen = b.fileLen;
         bufPos = b.bufPos;
         file = b.file;
-        stream = b.stream;
         // keep finalize from closing the file
         b.file = null;
     }
@@ -89,15 +91,13 @@ class Buffer {
         } else if (getPos() < fileLen) {
             setPos(getPos());         // shift buffer start to pos
             return buf[bufPos++] & 0xff; // mask out sign bits
-        } else if (stream != null && ReadNextStreamChunk() > 0) {
-            return buf[bufPos++] & 0xff;  // mask out sign bits
         } else {
             return EOF;
         }
     }
 
     public int Peek() {
-        int curPos = getPos();
+        long curPos = getPos();
         int ch = Read();
         setPos(curPos);
         return ch;
@@ -105,35 +105,27 @@ class Buffer {
 
     // beg .. begin, zero-based, inclusive, in byte
     // end .. end, zero-based, exclusive, in byte
-    public String GetString(int beg, int end) {
+    public String GetString(long beg, long end) {
         int len = 0;
-        char[] buf = new char[end - beg];
-        int oldPos = getPos();
+        char[] buf = new char[(int) (end - beg)];
+        long oldPos = getPos();
         setPos(beg);
         while (getPos() < end) buf[len++] = (char) Read();
         setPos(oldPos);
         return new String(buf, 0, len);
     }
 
-    public int getPos() {
+    public long getPos() {
         return bufPos + bufStart;
     }
 
-    public void setPos(int value) {
-        if (value >= fileLen && stream != null) {
-            // Wanted position is after buffer and the stream
-            // is not seek-able e.g. network or console,
-            // thus we have to read the stream manually till
-            // the wanted position is in sight.
-            while (value >= fileLen && ReadNextStreamChunk() > 0);
-        }
-
+    public void setPos(long value) {
         if (value < 0 || value > fileLen) {
             throw new FatalError("buffer out of bounds access, position: " + value);
         }
 
         if (value >= bufStart && value < bufStart + bufLen) { // already in buffer
-            bufPos = value - bufStart;
+            bufPos = (int) (value - bufStart);
         } else if (file != null) { // must be swapped in
             try {
                 file.seek(value);
@@ -144,36 +136,8 @@ class Buffer {
             }
         } else {
             // set the position to the end of the file, Pos will return fileLen.
-            bufPos = fileLen - bufStart;
-        }
-    }
-
-    // Read the next chunk of bytes from the stream, increases the buffer
-    // if needed and updates the fields fileLen and bufLen.
-    // Returns the number of bytes read.
-    private int ReadNextStreamChunk() {
-        int free = buf.length - bufLen;
-        if (free == 0) {
-            // in the case of a growing input stream
-            // we can neither seek in the stream, nor can we
-            // foresee the maximum length, thus we must adapt
-            // the buffer size on demand.
-            byte[] newBuf = new byte[bufLen * 2];
-            System.arraycopy(buf, 0, newBuf, 0, bufLen);
-            buf = newBuf;
-            free = bufLen;
-        }
-
-        int read;
-        try { read = stream.read(buf, bufLen, free); }
-        catch (IOException ioex) { throw new FatalError(ioex.getMessage()); }
-
-        if (read > 0) {
-            fileLen = bufLen = (bufLen + read);
-            return read;
+            bufPos = (int) (fileLen - bufStart);
         }
-        // end of stream reached
-        return 0;
     }
 }
 
@@ -184,9 +148,14 @@ class UTF8Buffer extends Buffer {
     UTF8Buffer(Buffer b) { super(b); }
 
     public int Read() {
+        return Decode(super::Read);
+    }
+
+    // decodes the next utf8 character from the given source of bytes
+    static int Decode(IntSupplier bytes) {
         int ch;
         do {
-            ch = super.Read();
+            ch = bytes.getAsInt();
             // until we find a utf8 start (0xxxxxxx or 11xxxxxx)
         } while ((ch >= 128) && ((ch & 0xC0) != 0xC0) && (ch != EOF));
         if (ch < 128 || ch == EOF) {
@@ -194,20 +163,20 @@ class UTF8Buffer extends Buffer {
             // 0xxxxxxx or end of file character
         } else if ((ch & 0xF0) == 0xF0) {
             // 11110xxx 10xxxxxx 10xxxxxx 10xxxxxx
-            int c1 = ch & 0x07; ch = super.Read();
-            int c2 = ch & 0x3F; ch = super.Read();
-            int c3 = ch & 0x3F; ch = super.Read();
+            int c1 = ch & 0x07; ch = bytes.getAsInt();
+            int c2 = ch & 0x3F; ch = bytes.getAsInt();
+            int c3 = ch & 0x3F; ch = bytes.getAsInt();
             int c4 = ch & 0x3F;
             ch = (((((c1 << 6) | c2) << 6) | c3) << 6) | c4;
         } else if ((ch & 0xE0) == 0xE0) {
             // 1110xxxx 10xxxxxx 10xxxxxx
-            int c1 = ch & 0x0F; ch = super.Read();
-            int c2 = ch & 0x3F; ch = super.Read();
+            int c1 = ch & 0x0F; ch = bytes.getAsInt();
+            int c2 = ch & 0x3F; ch = bytes.getAsInt();
             int c3 = ch & 0x3F;
             ch = (((c1 << 6) | c2) << 6) | c3;
         } else if ((ch & 0xC0) == 0xC0) {
             // 110xxxxx 10xxxxxx
-            int c1 = ch & 0x1F; ch = super.Read();
+            int c1 = ch & 0x1F; ch = bytes.getAsInt();
             int c2 = ch & 0x3F;
             ch = (c1 << 6) | c2;
         }
@@ -215,6 +184,184 @@ class UTF8Buffer extends Buffer {
     }
 }
 
+//-----------------------------------------------------------------------------------
+// MappedBuffer
+//-----------------------------------------------------------------------------------
+class MappedBuffer extends Buffer {
+    // The whole file is memory-mapped in segments of at most 1GB, so positions are
+    // longs and files larger than 2GB can be scanned without copying into a window.
+    private static final int SEGMENT_SHIFT = 30;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+    private final MappedByteBuffer[] segments;
+    private final long fileLen; // length of the mapped file
+    private long pos;           // current position in the file
+    private boolean utf8;       // whether Read() decodes utf8 characters
+    private final IntSupplier bytes = this::ReadByte;
+
+    public MappedBuffer(String fileName) {
+        try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ)) {
+            fileLen = channel.size();
+            segments = new MappedByteBuffer[(int) ((fileLen + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT)];
+            for (int i = 0; i < segments.length; i++) {
+                long start = (long) i << SEGMENT_SHIFT;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, fileLen - start));
+            }
+        } catch (IOException | InvalidPathException e) {
+            throw new FatalError("Could not open file " + fileName);
+        }
+    }
+
+    // switches to utf8 decoding, called when a utf8 byte order mark was found
+    public MappedBuffer asUTF8() {
+        utf8 = true;
+        return this;
+    }
+
+    public int Read() {
+        return utf8 ? UTF8Buffer.Decode(bytes) : ReadByte();
+    }
+
+    private int ReadByte() {
+        if (pos >= fileLen) {
+            return EOF;
+        }
+        int b = segments[(int) (pos >>> SEGMENT_SHIFT)].get((int) (pos & SEGMENT_MASK)) & 0xff;
+        pos++;
+        return b;
+    }
+
+    // beg .. begin, zero-based, inclusive, in byte
+    // end .. end, zero-based, exclusive, in byte
+    // the bytes are copied from the mapping in bulk and decoded at once
+    public String GetString(long beg, long end) {
+        byte[] text = new byte[(int) (end - beg)];
+        int len = 0;
+        for (long p = beg; p < end; ) {
+            MappedByteBuffer segment = segments[(int) (p >>> SEGMENT_SHIFT)];
+            int offset = (int) (p & SEGMENT_MASK);
+            int n = (int) Math.min(end - p, segment.limit() - offset);
+            segment.get(offset, text, len, n);
+            len += n;
+            p += n;
+        }
+        return new String(text, 0, len, utf8 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+    }
+
+    public long getPos() {
+        return pos;
+    }
+
+    public void setPos(long value) {
+        if (value < 0 || value > fileLen) {
+            throw new FatalError("buffer out of bounds access, position: " + value);
+        }
+        pos = value;
+    }
+}
+
+//-----------------------------------------------------------------------------------
+// StreamBuffer
+//-----------------------------------------------------------------------------------
+class StreamBuffer extends Buffer {
+    // A non seekable stream (console, pipe, network) is read on demand into chunks of 64KB,
+    // so scanning starts with the first bytes that arrive and a growing input never copies
+    // what it has already read. All chunks are kept, since the scanner moves back to the
+    // start of a token and the parser reads back the text of whole declarations.
+    private static final int CHUNK_SHIFT = 16;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private final List<byte[]> chunks = new ArrayList<>();
+    private InputStream stream; // remaining input, null once the end of the stream was reached
+    private long fileLen;       // number of bytes read from the stream so far
+    private long pos;           // current position in the stream
+    private boolean utf8;       // whether Read() decodes utf8 characters
+    private final IntSupplier bytes = this::ReadByte;
+
+    public StreamBuffer(InputStream s) {
+        stream = s;
+    }
+
+    // switches to utf8 decoding, called when a utf8 byte order mark was found
+    public StreamBuffer asUTF8() {
+        utf8 = true;
+        return this;
+    }
+
+    public int Read() {
+        return utf8 ? UTF8Buffer.Decode(bytes) : ReadByte();
+    }
+
+    private int ReadByte() {
+        if (pos >= fileLen && ReadNextStreamChunk() == 0) {
+            return EOF;
+        }
+        int b = chunks.get((int) (pos >>> CHUNK_SHIFT))[(int) (pos & CHUNK_MASK)] & 0xff;
+        pos++;
+        return b;
+    }
+
+    // beg .. begin, zero-based, inclusive, in byte
+    // end .. end, zero-based, exclusive, in byte
+    // the bytes are copied from the chunks in bulk and decoded at once
+    public String GetString(long beg, long end) {
+        while (end > fileLen && ReadNextStreamChunk() > 0);
+        end = Math.min(end, fileLen);
+        byte[] text = new byte[(int) (end - beg)];
+        int len = 0;
+        for (long p = beg; p < end; ) {
+            int offset = (int) (p & CHUNK_MASK);
+            int n = (int) Math.min(end - p, CHUNK_SIZE - offset);
+            System.arraycopy(chunks.get((int) (p >>> CHUNK_SHIFT)), offset, text, len, n);
+            len += n;
+            p += n;
+        }
+        return new String(text, 0, len, utf8 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+    }
+
+    public long getPos() {
+        return pos;
+    }
+
+    public void setPos(long value) {
+        // the stream cannot seek, so it is read till the wanted position is in sight
+        while (value > fileLen && ReadNextStreamChunk() > 0);
+        if (value < 0 || value > fileLen) {
+            throw new FatalError("buffer out of bounds access, position: " + value);
+        }
+        pos = value;
+    }
+
+    // Reads the next bytes from the stream into the last chunk, or into a new chunk
+    // once the last one is full, and updates fileLen.
+    // Returns the number of bytes read, 0 at the end of the stream.
+    private int ReadNextStreamChunk() {
+        if (stream == null) {
+            return 0;
+        }
+        int offset = (int) (fileLen & CHUNK_MASK);
+        if (offset == 0) {
+            chunks.add(new byte[CHUNK_SIZE]);
+        }
+        int read;
+        try {
+            // read() returns what is available, so scanning proceeds while the input is still arriving
+            read = stream.read(chunks.getLast(), offset, CHUNK_SIZE - offset);
+        } catch (IOException e) {
+            throw new FatalError(e.getMessage());
+        }
+        if (read <= 0) {
+            if (offset == 0) {
+                chunks.removeLast();
+            }
+            stream = null;
+            return 0;
+        }
+        fileLen += read;
+        return read;
+    }
+}
+
 //-----------------------------------------------------------------------------------
 // StartStates  -- maps characters to start states of tokens
 //-----------------------------------------------------------------------------------
@@ -254,16 +401,22 @@ public class Scanner {
 
     Token t;           // current token
     int ch;            // current input character
-    int pos;           // byte position of current character
-    int charPos;       // position by unicode characters starting with 0
+    long pos;          // byte position of current character
+    long charPos;      // position by unicode characters starting with 0
     int col;           // column number of current character
     int line;          // line number of current character
     int oldEols;       // EOLs that appeared in a comment;
     static final StartStates start; // maps initial token character to start state
-    static final Map literals;      // maps literal strings to literal kinds
+    static final String[] keywords = new String[64]; // keywords by their perfect hash, see KeywordHash()
+    static final int[] keywordKinds = new int[64];     // token kinds of the keywords
 
     Token tokens;      // list of tokens already peeked (first token is a dummy)
     Token pt;          // current peek token
+    static final int RING_SIZE = 16; // must exceed the number of tokens the parser holds plus the peek depth
+    Token[] ring = new Token[RING_SIZE]; // reusable tokens returned by NextToken()
+    int ringPos;       // next token of the ring to be reused
+    String[] names = new String[256]; // identifier and number texts seen so far, open addressing
+    int nameCount;     // number of entries in names
 
     char[] tval = new char[16]; // token text used in NextToken(), dynamically enlarged
     int tlen;          // length of current token
@@ -271,7 +424,6 @@ public class Scanner {
 
     static {
         start = new StartStates();
-        literals = new HashMap();
         for (int i = 97; i <= 104; ++i) start.set(i, 1);
         for (int i = 106; i <= 122; ++i) start.set(i, 1);
         for (int i = 48; i <= 57; ++i) start.set(i, 2);
@@ -287,42 +439,42 @@ public class Scanner {
         start.set(34, 32);
         start.set(39, 33);
         start.set(Buffer.EOF, -1);
-        literals.put("library", 4);
-        literals.put("ieee", 5);
-        literals.put("use", 7);
-        literals.put("entity", 9);
-        literals.put("is", 10);
-        literals.put("port", 11);
-        literals.put("end", 14);
-        literals.put("in", 16);
-        literals.put("out", 17);
-        literals.put("std_ulogic", 18);
-        literals.put("std_ulogic_vector", 19);
-        literals.put("downto", 20);
-        literals.put("architecture", 21);
-        literals.put("of", 22);
-        literals.put("begin", 23);
-        literals.put("component", 24);
-        literals.put("signal", 25);
-        literals.put("xor", 27);
-        literals.put("and", 28);
-        literals.put("or", 29);
-        literals.put("nand", 30);
-        literals.put("nor", 31);
-        literals.put("xnor", 32);
-        literals.put("not", 34);
-        literals.put("map", 36);
-        literals.put("open", 39);
+        AddKeyword("library", 4);
+        AddKeyword("ieee", 5);
+        AddKeyword("use", 7);
+        AddKeyword("entity", 9);
+        AddKeyword("is", 10);
+        AddKeyword("port", 11);
+        AddKeyword("end", 14);
+        AddKeyword("in", 16);
+        AddKeyword("out", 17);
+        AddKeyword("std_ulogic", 18);
+        AddKeyword("std_ulogic_vector", 19);
+        AddKeyword("downto", 20);
+        AddKeyword("architecture", 21);
+        AddKeyword("of", 22);
+        AddKeyword("begin", 23);
+        AddKeyword("component", 24);
+        AddKeyword("signal", 25);
+        AddKeyword("xor", 27);
+        AddKeyword("and", 28);
+        AddKeyword("or", 29);
+        AddKeyword("nand", 30);
+        AddKeyword("nor", 31);
+        AddKeyword("xnor", 32);
+        AddKeyword("not", 34);
+        AddKeyword("map", 36);
+        AddKeyword("open", 39);
 
     }
 
     public Scanner (String fileName) {
-        buffer = new Buffer(fileName);
+        buffer = new MappedBuffer(fileName);
         Init();
     }
 
     public Scanner(InputStream s) {
-        buffer = new Buffer(s);
+        buffer = new StreamBuffer(s);
         Init();
     }
 
@@ -336,7 +488,12 @@ public class Scanner {
             if (ch1 != 0xBB || ch2 != 0xBF) {
                 throw new FatalError("Illegal byte order mark at start of file");
             }
-            buffer = new UTF8Buffer(buffer); col = 0; charPos = -1;
+            buffer = switch (buffer) {
+                case MappedBuffer mapped -> mapped.asUTF8();
+                case StreamBuffer stream -> stream.asUTF8();
+                default -> new UTF8Buffer(buffer);
+            };
+            col = 0; charPos = -1;
             NextCh();
         }
         pt = tokens = new Token();  // first token is a dummy
@@ -376,7 +533,8 @@ public class Scanner {
 
 
     boolean Comment0() {
-        int level = 1, pos0 = pos, line0 = line, col0 = col, charPos0 = charPos;
+        int level = 1, line0 = line, col0 = col;
+        long pos0 = pos, charPos0 = charPos;
         NextCh();
         if (ch == '-') {
             NextCh();
@@ -398,14 +556,67 @@ public class Scanner {
     }
 
 
+    // perfect hash over the keywords, using the length and the lower-cased first and last character
+    static int KeywordHash(int len, int first, int last) {
+        return (len + 4 * first + 5 * last) & 63;
+    }
+
+    static void AddKeyword(String keyword, int kind) {
+        int h = KeywordHash(keyword.length(), keyword.charAt(0), keyword.charAt(keyword.length() - 1));
+        if (keywords[h] != null) throw new FatalError("keyword hash collision: " + keyword);
+        keywords[h] = keyword; keywordKinds[h] = kind;
+    }
+
     void CheckLiteral() {
-        String val = t.val;
-        val = val.toLowerCase();
+        int h = KeywordHash(tlen, Character.toLowerCase(tval[0]), Character.toLowerCase(tval[tlen - 1]));
+        String keyword = keywords[h];
+        if (keyword != null && keyword.length() == tlen) {
+            int i = 0;
+            while (i < tlen && Character.toLowerCase(tval[i]) == keyword.charAt(i)) i++;
+            if (i == tlen) { t.kind = keywordKinds[h]; t.val = keyword; return; }
+        }
+        t.val = Name();
+    }
+
+    // returns the text of the current token, sharing one String per distinct token text
+    String Name() {
+        int hash = 0;
+        for (int i = 0; i < tlen; i++) hash = 31 * hash + tval[i];
+        int mask = names.length - 1;
+        int h = hash & mask;
+        for (String name = names[h]; name != null; name = names[h]) {
+            if (name.length() == tlen) {
+                int i = 0;
+                while (i < tlen && name.charAt(i) == tval[i]) i++;
+                if (i == tlen) return name;
+            }
+            h = (h + 1) & mask;
+        }
+        String name = new String(tval, 0, tlen);
+        names[h] = name;
+        if (++nameCount * 2 > names.length) {
+            String[] old = names;
+            names = new String[old.length * 2];
+            mask = names.length - 1;
+            for (String n : old) {
+                if (n == null) continue;
+                int k = n.hashCode() & mask;
+                while (names[k] != null) k = (k + 1) & mask;
+                names[k] = n;
+            }
+        }
+        return name;
+    }
 
-        Object kind = literals.get(val);
-        if (kind != null) {
-            t.kind = ((Integer) kind).intValue();
+    // returns the oldest token of the ring, reset for reuse
+    Token NewToken() {
+        Token token = ring[ringPos];
+        if (token == null) {
+            token = ring[ringPos] = new Token();
         }
+        ringPos = (ringPos + 1) % RING_SIZE;
+        token.val = null; token.next = null;
+        return token;
     }
 
     Token NextToken() {
@@ -414,8 +625,8 @@ public class Scanner {
         ) NextCh();
         if (ch == '-' && Comment0()) return NextToken();
         int recKind = noSym;
-        int recEnd = pos;
-        t = new Token();
+        long recEnd = pos;
+        t = NewToken();
         t.pos = pos; t.col = col; t.line = line; t.charPos = charPos;
         int state = start.state(ch);
         tlen = 0; AddCh();
@@ -425,7 +636,7 @@ public class Scanner {
                 case -1: { t.kind = eofSym; break loop; } // NextCh already done
                 case 0: {
                     if (recKind != noSym) {
-                        tlen = recEnd - t.pos;
+                        tlen = (int) (recEnd - t.pos);
                         SetScannerBehindT();
                     }
                     t.kind = recKind; break loop;
@@ -433,7 +644,7 @@ public class Scanner {
                 case 1:
                     recEnd = pos; recKind = 1;
                     if (ch >= '0' && ch <= '9' || ch == '_' || ch >= 'a' && ch <= 'z') {AddCh(); state = 1; break;}
-                    else {t.kind = 1; t.val = new String(tval, 0, tlen); CheckLiteral(); return t;}
+                    else {t.kind = 1; CheckLiteral(); return t;}
                 case 2:
                     recEnd = pos; recKind = 2;
                     if (ch >= '0' && ch <= '9') {AddCh(); state = 2; break;}
@@ -524,26 +735,26 @@ public class Scanner {
                     recEnd = pos; recKind = 1;
                     if (ch >= '0' && ch <= '9' || ch == '_' || ch >= 'a' && ch <= 'd' || ch >= 'f' && ch <= 'z') {AddCh(); state = 1; break;}
                     else if (ch == 'e') {AddCh(); state = 35; break;}
-                    else {t.kind = 1; t.val = new String(tval, 0, tlen); CheckLiteral(); return t;}
+                    else {t.kind = 1; CheckLiteral(); return t;}
                 case 35:
                     recEnd = pos; recKind = 1;
                     if (ch >= '0' && ch <= '9' || ch == '_' || ch >= 'a' && ch <= 'd' || ch >= 'f' && ch <= 'z') {AddCh(); state = 1; break;}
                     else if (ch == 'e') {AddCh(); state = 36; break;}
-                    else {t.kind = 1; t.val = new String(tval, 0, tlen); CheckLiteral(); return t;}
+                    else {t.kind = 1; CheckLiteral(); return t;}
                 case 36:
                     recEnd = pos; recKind = 1;
                     if (ch >= '0' && ch <= '9' || ch == '_' || ch >= 'a' && ch <= 'd' || ch >= 'f' && ch <= 'z') {AddCh(); state = 1; break;}
                     else if (ch == 'e') {AddCh(); state = 37; break;}
-                    else {t.kind = 1; t.val = new String(tval, 0, tlen); CheckLiteral(); return t;}
+                    else {t.kind = 1; CheckLiteral(); return t;}
                 case 37:
                     recEnd = pos; recKind = 1;
                     if (ch >= '0' && ch <= '9' || ch == '_' || ch >= 'a' && ch <= 'z') {AddCh(); state = 1; break;}
                     else if (ch == '.') {AddCh(); state = 5; break;}
-                    else {t.kind = 1; t.val = new String(tval, 0, tlen); CheckLiteral(); return t;}
+                    else {t.kind = 1; CheckLiteral(); return t;}
 
             }
         }
-        t.val = new String(tval, 0, tlen);
+        t.val = Name();
         return t;
     }
 
@@ -557,7 +768,9 @@ public class Scanner {
     // get the next token (possibly a token already seen during peeking)
     public Token Scan () {
         if (tokens.next == null) {
-            return NextToken();
+            // keep the list head on the returned token, so it is never a ring token that was reused meanwhile
+            pt = tokens = NextToken();
+            return tokens;
         } else {
             pt = tokens = tokens.next;
             return tokens;
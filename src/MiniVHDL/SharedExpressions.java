@@ -0,0 +1,159 @@
+package MiniVHDL;
+
+import MiniVHDL.Circuit.*;
+import MiniVHDL.Circuit.Expression.*;
+import MiniVHDL.Circuit.Wire.*;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The {@code SharedExpressions} class hash-conses the expression trees of a list of
+ * {@link Connection} objects into a DAG. Structurally equal {@link OperationExpression},
+ * {@link NegationExpression} and {@link WidthExpression} nodes receive the same id, and
+ * every node referenced from more than one place is marked as shared, so it can be
+ * emitted once as a FIRRTL {@code node}.
+ */
+class SharedExpressions {
+    private final Map<Object, Integer> ids = new HashMap<>();
+    private final Map<Expression, Integer> idOf = new IdentityHashMap<>();
+    private final BitSet composite = new BitSet();
+    private int[] uses = new int[64];
+
+    private record OperationKey(OperationExpression.Operation operation, int width, int left, int right) {
+    }
+
+    private record NegationKey(int width, int expression) {
+    }
+
+    private record WidthKey(int width, int offset, int source) {
+    }
+
+    private record InstancePortKey(Instance instance, Port port) {
+    }
+
+    private record ImmediateKey(String value) {
+    }
+
+    /**
+     * Builds the expression DAG of the given connections and counts the references to each node.
+     *
+     * @param connections the connections whose expressions are deduplicated.
+     */
+    public SharedExpressions(List<Connection> connections) {
+        for (Connection connection : connections) {
+            if (connection.from != null) {
+                int id = intern(connection.from);
+                uses[id]++;
+            }
+            if (connection.to != null) {
+                intern(connection.to);
+            }
+        }
+    }
+
+    /**
+     * Returns the id of the structural equivalence class of the given expression.
+     *
+     * @param expression an expression of one of the connections.
+     * @return the id shared by all structurally equal expressions.
+     */
+    public int getId(Expression expression) {
+        return idOf.get(expression);
+    }
+
+    /**
+     * Checks whether the given expression is an operation, negation or width expression
+     * that is referenced from more than one place.
+     *
+     * @param expression an expression of one of the connections.
+     * @return {@code true} if the expression should be emitted once and referenced by name.
+     */
+    public boolean isShared(Expression expression) {
+        int id = getId(expression);
+        return composite.get(id) && uses[id] > 1;
+    }
+
+    private int intern(Expression root) {
+        Integer known = idOf.get(root);
+        if (known != null) {
+            return known;
+        }
+        // post-order walk with an explicit stack, since reduction chains can be thousands of nodes deep
+        ArrayDeque<Expression> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Expression expression = stack.peek();
+            Object key = switch (expression) {
+                case OperationExpression expr -> {
+                    Integer left = idOf.get(expr.left);
+                    Integer right = idOf.get(expr.right);
+                    if (left == null) {
+                        stack.push(expr.left);
+                    }
+                    if (right == null) {
+                        stack.push(expr.right);
+                    }
+                    yield left == null || right == null ? null : new OperationKey(expr.operation, expr.width, left, right);
+                }
+                case NegationExpression expr -> {
+                    Integer child = idOf.get(expr.expression);
+                    if (child == null) {
+                        stack.push(expr.expression);
+                    }
+                    yield child == null ? null : new NegationKey(expr.width, child);
+                }
+                case WidthExpression expr -> {
+                    Integer source = idOf.get(expr.source);
+                    if (source == null) {
+                        stack.push(expr.source);
+                    }
+                    yield source == null ? null : new WidthKey(expr.width, expr.offset, source);
+                }
+                case SignalWire wire -> wire.signal;
+                case PortWire wire -> wire.port;
+                case InstancePortWire wire -> new InstancePortKey(wire.instance, wire.port);
+                case ImmediateWire wire -> new ImmediateKey(wire.getName());
+                default -> expression;
+            };
+            if (key == null) {
+                continue;
+            }
+            stack.pop();
+            if (!idOf.containsKey(expression)) {
+                idOf.put(expression, getOrCreateId(key, !(expression instanceof Wire)));
+            }
+        }
+        return idOf.get(root);
+    }
+
+    private int getOrCreateId(Object key, boolean isComposite) {
+        Integer id = ids.get(key);
+        if (id != null) {
+            return id;
+        }
+        id = ids.size();
+        ids.put(key, id);
+        composite.set(id, isComposite);
+        if (id == uses.length) {
+            int[] newUses = new int[uses.length * 2];
+            System.arraycopy(uses, 0, newUses, 0, uses.length);
+            uses = newUses;
+        }
+        switch (key) {
+            case OperationKey k -> {
+                uses[k.left()]++;
+                uses[k.right()]++;
+            }
+            case NegationKey k -> uses[k.expression()]++;
+            case WidthKey k -> uses[k.source()]++;
+            default -> {
+            }
+        }
+        return id;
+    }
+}
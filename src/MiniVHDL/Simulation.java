@@ -0,0 +1,258 @@
+package MiniVHDL;
+
+import MiniVHDL.Circuit.Circuit;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The {@code Simulation} runs a top-level entity of a compiled {@link Circuit} on the {@link Simulator},
+ * either against the vectors of a file or on random vectors as a throughput check.
+ * <p>
+ * The first line of a vector file names the ports, separated by whitespace; each following line holds
+ * one vector with a value for each of those ports. Values are binary numbers, most significant bit first,
+ * with as many digits as the port has bits. Inputs are applied and outputs are compared, where an {@code x}
+ * or {@code -} digit of an output matches any value. Blank lines and lines starting with {@code #} are skipped.
+ * The vectors are simulated 64 at a time.
+ * </p>
+ */
+class Simulation {
+    private record Vector(int line, String[] values) {
+    }
+
+    /**
+     * Simulates the vectors of a file and reports every output that differs from the expected value.
+     *
+     * @param circuit      the compiled circuit.
+     * @param topLevelName the name of the top-level entity.
+     * @param file         the vector file.
+     * @param mode         how the simulator evaluates the gates.
+     * @param out          the stream for the mismatches and the summary.
+     * @param err          the stream for errors in the file.
+     * @return 0 if all outputs matched, 1 otherwise.
+     */
+    public static int runVectors(Circuit circuit, String topLevelName, Path file, Simulator.Mode mode, PrintStream out, PrintStream err) {
+        Netlist netlist;
+        try {
+            netlist = new Netlist(circuit, topLevelName);
+        } catch (IllegalArgumentException e) {
+            err.printf("Error: %s%n", e.getMessage());
+            return 1;
+        }
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(file);
+        } catch (IOException e) {
+            err.printf("Error: Cannot read vectors %s%n", file);
+            return 1;
+        }
+
+        String[] header = null;
+        List<Vector> vectors = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).strip();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            if (header == null) {
+                for (String name : fields) {
+                    if (!netlist.inputs.containsKey(name.toLowerCase()) && !netlist.outputs.containsKey(name.toLowerCase())) {
+                        err.printf("Error: %s line %d: %s is not a port of %s%n", file, i + 1, name, topLevelName);
+                        return 1;
+                    }
+                }
+                header = fields;
+                continue;
+            }
+            if (fields.length != header.length) {
+                err.printf("Error: %s line %d: expected %d values%n", file, i + 1, header.length);
+                return 1;
+            }
+            for (int p = 0; p < header.length; p++) {
+                String name = header[p].toLowerCase();
+                boolean input = netlist.inputs.containsKey(name);
+                int width = (input ? netlist.inputs : netlist.outputs).get(name).length;
+                if (fields[p].length() != width || !fields[p].matches(input ? "[01]+" : "[01xX-]+")) {
+                    err.printf("Error: %s line %d: invalid value %s for %s%n", file, i + 1, fields[p], header[p]);
+                    return 1;
+                }
+            }
+            vectors.add(new Vector(i + 1, fields));
+        }
+        if (header == null) {
+            out.println("0 vectors simulated");
+            return 0;
+        }
+
+        Simulator simulator;
+        try {
+            simulator = new Simulator(netlist, mode);
+        } catch (IllegalArgumentException e) {
+            err.printf("Error: %s%n", e.getMessage());
+            return 1;
+        }
+        int mismatches = 0;
+        for (int first = 0; first < vectors.size(); first += Simulator.LANES) {
+            List<Vector> batch = vectors.subList(first, Math.min(first + Simulator.LANES, vectors.size()));
+            for (int p = 0; p < header.length; p++) {
+                String name = header[p].toLowerCase();
+                if (netlist.inputs.containsKey(name)) {
+                    long[] words = new long[netlist.inputs.get(name).length];
+                    for (int lane = 0; lane < batch.size(); lane++) {
+                        String value = batch.get(lane).values[p];
+                        for (int k = 0; k < words.length; k++) {
+                            if (value.charAt(words.length - 1 - k) == '1') {
+                                words[k] |= 1L << lane;
+                            }
+                        }
+                    }
+                    simulator.setInput(name, words);
+                }
+            }
+            simulator.evaluate();
+            for (int p = 0; p < header.length; p++) {
+                String name = header[p].toLowerCase();
+                if (!netlist.outputs.containsKey(name)) {
+                    continue;
+                }
+                long[] words = simulator.getOutput(name);
+                for (int lane = 0; lane < batch.size(); lane++) {
+                    String expected = batch.get(lane).values[p];
+                    StringBuilder actual = new StringBuilder(words.length);
+                    boolean matches = true;
+                    for (int k = words.length - 1; k >= 0; k--) {
+                        char bit = (words[k] >>> lane & 1) != 0 ? '1' : '0';
+                        char want = expected.charAt(words.length - 1 - k);
+                        matches &= want == bit || want == 'x' || want == 'X' || want == '-';
+                        actual.append(bit);
+                    }
+                    if (!matches) {
+                        mismatches++;
+                        out.printf("-- line %d: %s is %s, expected %s%n", batch.get(lane).line, header[p], actual, expected);
+                    }
+                }
+            }
+        }
+        out.printf("%d vectors simulated, %d %s%n", vectors.size(), mismatches, mismatches == 1 ? "mismatch" : "mismatches");
+        return mismatches == 0 ? 0 : 1;
+    }
+
+    /**
+     * Simulates random vectors and reports the throughput and a checksum of all outputs,
+     * which stays the same as long as the design computes the same function.
+     *
+     * @param circuit      the compiled circuit.
+     * @param topLevelName the name of the top-level entity.
+     * @param count        the number of vectors, rounded up to a multiple of 64.
+     * @param mode         how the simulator evaluates the gates.
+     * @param out          the stream for the report.
+     * @param err          the stream for errors.
+     * @return 0 if the design could be simulated, 1 otherwise.
+     */
+    public static int runRandom(Circuit circuit, String topLevelName, long count, Simulator.Mode mode, PrintStream out, PrintStream err) {
+        Netlist netlist;
+        try {
+            netlist = new Netlist(circuit, topLevelName);
+        } catch (IllegalArgumentException e) {
+            err.printf("Error: %s%n", e.getMessage());
+            return 1;
+        }
+        Simulator simulator;
+        try {
+            simulator = new Simulator(netlist, mode);
+        } catch (IllegalArgumentException e) {
+            err.printf("Error: %s%n", e.getMessage());
+            return 1;
+        }
+        long batches = (count + Simulator.LANES - 1) / Simulator.LANES;
+        long start = System.nanoTime();
+        long checksum = simulateRandom(simulator, batches);
+        long nanos = System.nanoTime() - start;
+        long vectors = batches * Simulator.LANES;
+        out.printf("%d vectors simulated in %.1f ms, %.1f M vectors/s, %d gates, output checksum %016x%n",
+                vectors, nanos / 1e6, vectors * 1e3 / Math.max(nanos, 1), netlist.gateCount, checksum);
+        return 0;
+    }
+
+    /**
+     * Simulates random vectors with the {@link ParallelEvaluator} on pools of 1, 2, 4, 8 and 16 threads and reports
+     * the throughput of each, as a check of how the simulation of a design scales with the number of cores.
+     * All runs simulate the same vectors, after a first run that lets the JIT compile the simulator.
+     *
+     * @param circuit      the compiled circuit.
+     * @param topLevelName the name of the top-level entity.
+     * @param count        the number of vectors of each run, rounded up to a multiple of 64.
+     * @param out          the stream for the report.
+     * @param err          the stream for errors.
+     * @return 0 if the design could be simulated and all runs computed the same outputs, 1 otherwise.
+     */
+    public static int runScaling(Circuit circuit, String topLevelName, long count, PrintStream out, PrintStream err) {
+        Netlist netlist;
+        try {
+            netlist = new Netlist(circuit, topLevelName);
+        } catch (IllegalArgumentException e) {
+            err.printf("Error: %s%n", e.getMessage());
+            return 1;
+        }
+        long batches = (count + Simulator.LANES - 1) / Simulator.LANES;
+        out.printf("%d gates in %d levels, %d cores available%n",
+                netlist.gateCount, netlist.levelCount, Runtime.getRuntime().availableProcessors());
+        ForkJoinPool warmUp = new ForkJoinPool(2);
+        try {
+            simulateRandom(new Simulator(netlist, new ParallelEvaluator(netlist, warmUp)), batches);
+        } finally {
+            warmUp.shutdown();
+        }
+        double single = 0;
+        Long expected = null;
+        for (int threads = 1; threads <= 16; threads *= 2) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                ParallelEvaluator evaluator = new ParallelEvaluator(netlist, pool);
+                Simulator simulator = new Simulator(netlist, evaluator);
+                long start = System.nanoTime();
+                long checksum = simulateRandom(simulator, batches);
+                double rate = batches * Simulator.LANES * 1e3 / Math.max(System.nanoTime() - start, 1);
+                single = threads == 1 ? rate : single;
+                out.printf("%2d threads: %.2f M vectors/s, speedup %.2f, %d levels split, output checksum %016x%n",
+                        threads, rate, rate / single, evaluator.getParallelBandCount(), checksum);
+                if (expected != null && checksum != expected) {
+                    err.printf("Error: The outputs with %d threads differ from those with 1 thread%n", threads);
+                    return 1;
+                }
+                expected = checksum;
+            } finally {
+                pool.shutdown();
+            }
+        }
+        return 0;
+    }
+
+    // simulates random vectors, the same for every simulator, and returns the checksum of the outputs
+    private static long simulateRandom(Simulator simulator, long batches) {
+        Netlist netlist = simulator.netlist;
+        SplittableRandom random = new SplittableRandom(0);
+        long checksum = 0;
+        for (long batch = 0; batch < batches; batch++) {
+            for (int[] slots : netlist.inputs.values()) {
+                for (int slot : slots) {
+                    simulator.state[slot] = random.nextLong();
+                }
+            }
+            simulator.evaluate();
+            for (int[] slots : netlist.outputs.values()) {
+                for (int slot : slots) {
+                    checksum = checksum * 31 + simulator.state[slot];
+                }
+            }
+        }
+        return checksum;
+    }
+}
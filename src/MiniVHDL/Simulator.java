@@ -0,0 +1,178 @@
+package MiniVHDL;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The {@code Simulator} evaluates the gates of a {@link Netlist} on 64 independent test vectors at once.
+ * <p>
+ * Each slot of the netlist holds one {@code long}, whose bit {@code i} is the value of that bit in vector {@code i},
+ * so every gate is evaluated for all 64 vectors by a single bitwise operation on two words.
+ * Since the gates are levelized, one pass over them settles all outputs.
+ * </p>
+ * <p>
+ * The gates are either interpreted from the arrays of the netlist or run as a class generated by the
+ * {@link NetlistCompiler}. The compiled class runs faster once HotSpot has compiled it to machine code,
+ * which takes time in proportion to the size of the design, so it pays off for long runs of many vectors.
+ * The {@link EventDrivenEvaluator} instead evaluates only the gates whose inputs changed since the last evaluation,
+ * which pays off when consecutive evaluations change few input bits, and the {@link ParallelEvaluator} spreads
+ * the wide levels of large designs across threads.
+ * </p>
+ */
+class Simulator {
+    public static final int LANES = 64;
+
+    /**
+     * How the gates are evaluated.
+     */
+    public enum Mode {
+        INTERPRETED, COMPILED, EVENT_DRIVEN, PARALLEL
+    }
+
+    /**
+     * Evaluates all gates of a netlist on a state; implemented by the classes generated by the {@link NetlistCompiler}.
+     */
+    public interface Evaluator {
+        void eval(long[] state);
+    }
+
+    public final Netlist netlist;
+    public final long[] state;
+    private final Evaluator evaluator;
+
+    /**
+     * Creates an interpreting simulator with all inputs set to 0.
+     *
+     * @param netlist the netlist to evaluate.
+     */
+    public Simulator(Netlist netlist) {
+        this(netlist, Mode.INTERPRETED);
+    }
+
+    /**
+     * Creates a simulator with all inputs set to 0.
+     *
+     * @param netlist the netlist to evaluate.
+     * @param mode    how to evaluate the gates.
+     * @throws IllegalArgumentException if the netlist is too large to be compiled.
+     */
+    public Simulator(Netlist netlist, Mode mode) {
+        this.netlist = netlist;
+        state = new long[netlist.slotCount];
+        state[Netlist.ONE] = -1L;
+        evaluator = switch (mode) {
+            case INTERPRETED -> this::interpret;
+            case COMPILED -> NetlistCompiler.compile(netlist);
+            case EVENT_DRIVEN -> new EventDrivenEvaluator(netlist);
+            case PARALLEL -> new ParallelEvaluator(netlist, ForkJoinPool.commonPool());
+        };
+    }
+
+    /**
+     * Creates a simulator with all inputs set to 0 that evaluates the gates with the given evaluator.
+     *
+     * @param netlist   the netlist to evaluate.
+     * @param evaluator the evaluator of the netlist.
+     */
+    public Simulator(Netlist netlist, Evaluator evaluator) {
+        this.netlist = netlist;
+        state = new long[netlist.slotCount];
+        state[Netlist.ONE] = -1L;
+        this.evaluator = evaluator;
+    }
+
+    /**
+     * Sets the bits of an input for all 64 vectors.
+     *
+     * @param name  the name of the input port.
+     * @param words the words of the bits, least significant bit first; bit {@code i} of a word belongs to vector {@code i}.
+     */
+    public void setInput(String name, long[] words) {
+        int[] slots = netlist.inputs.get(name);
+        for (int k = 0; k < slots.length; k++) {
+            state[slots[k]] = k < words.length ? words[k] : 0;
+        }
+    }
+
+    /**
+     * Returns the bits of an output for all 64 vectors, as settled by the last {@link #evaluate()}.
+     *
+     * @param name the name of the output port.
+     * @return the words of the bits, least significant bit first; bit {@code i} of a word belongs to vector {@code i}.
+     */
+    public long[] getOutput(String name) {
+        int[] slots = netlist.outputs.get(name);
+        long[] words = new long[slots.length];
+        for (int k = 0; k < slots.length; k++) {
+            words[k] = state[slots[k]];
+        }
+        return words;
+    }
+
+    /**
+     * Sets an input to one value per vector.
+     *
+     * @param name   the name of the input port.
+     * @param values the values of up to 64 vectors; bits above bit 63 of the port are set to 0.
+     */
+    public void setInputValues(String name, long[] values) {
+        setInput(name, transpose(values, netlist.inputs.get(name).length));
+    }
+
+    /**
+     * Returns the value of an output in each vector.
+     *
+     * @param name the name of the output port.
+     * @return the values of the 64 vectors; bits above bit 63 of the port are dropped.
+     */
+    public long[] getOutputValues(String name) {
+        return transpose(getOutput(name), LANES);
+    }
+
+    // turns one word per vector into one word per bit and back
+    private static long[] transpose(long[] words, int length) {
+        long[] result = new long[length];
+        for (int i = 0; i < Math.min(words.length, LANES); i++) {
+            for (int k = 0; k < Math.min(length, LANES); k++) {
+                result[k] |= ((words[i] >>> k) & 1) << i;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Evaluates all gates in level order.
+     */
+    public void evaluate() {
+        evaluator.eval(state);
+    }
+
+    private void interpret(long[] state) {
+        int[] ops = netlist.ops;
+        int[] lefts = netlist.lefts;
+        int[] rights = netlist.rights;
+        int[] targets = netlist.targets;
+        for (int g = 0; g < ops.length; g++) {
+            state[targets[g]] = apply(ops[g], state[lefts[g]], state[rights[g]]);
+        }
+    }
+
+    /**
+     * Applies a gate operation to the words of its inputs.
+     *
+     * @param op    the operation, one of the gate constants of {@link Netlist}.
+     * @param left  the left input.
+     * @param right the right input, ignored by {@link Netlist#NOT}.
+     * @return the output.
+     */
+    static long apply(int op, long left, long right) {
+        return switch (op) {
+            case Netlist.AND -> left & right;
+            case Netlist.OR -> left | right;
+            case Netlist.XOR -> left ^ right;
+            case Netlist.NAND -> ~(left & right);
+            case Netlist.NOR -> ~(left | right);
+            case Netlist.XNOR -> ~(left ^ right);
+            default -> ~left;
+        };
+    }
+}